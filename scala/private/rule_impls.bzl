@@ -28,6 +28,7 @@ load(
     "write_manifest",
 )
 load("@io_bazel_rules_scala//scala:jars_to_labels.bzl", "JarsToLabelsInfo")
+load("@io_bazel_rules_scala//scala:signature_jars.bzl", "SignatureJarsInfo")
 
 _java_extension = ".java"
 _scala_extension = ".scala"
@@ -125,6 +126,18 @@ def _collect_plugin_paths(plugins):
       paths.extend([f for f in p.files if not_sources_jar(f.basename)])
   return depset(paths)
 
+def _collect_signature_jars(dep_targets):
+  signature_jars = {}
+  for dep_target in dep_targets:
+    if SignatureJarsInfo in dep_target:
+      signature_jars.update(dep_target[SignatureJarsInfo].signature_jars)
+  return signature_jars
+
+# Only scalac reads the signature jars, so they stand in for the ijars of the
+# dependencies on its classpath alone. Java is compiled against the ijars.
+def _with_signature_jars(jars, signature_jars):
+  return depset([signature_jars.get(jar.path, jar) for jar in jars.to_list()])
+
 def _expand_location(ctx, flags):
   return [ctx.expand_location(f, ctx.attr.data) for f in flags]
 
@@ -151,11 +164,23 @@ def compile_scala(ctx,
                   scalac_jvm_flags,
                   scalac_provider,
                   unused_dependency_checker_mode = "off",
-                  unused_dependency_checker_ignored_targets = []):
+                  unused_dependency_checker_ignored_targets = [],
+                  signature_output = None):
+  signature_jars = _collect_signature_jars(getattr(ctx.attr, "deps", []))
+  if signature_jars:
+    cjars = _with_signature_jars(cjars, signature_jars)
+    transitive_compile_jars = _with_signature_jars(transitive_compile_jars,
+                                                   signature_jars)
+    labels = dict(labels)
+    for path, signature_jar in signature_jars.items():
+      if path in labels:
+        labels[signature_jar.path] = labels[path]
+
   # look for any plugins:
   plugins = _collect_plugin_paths(plugins)
   internal_plugin_jars = []
   dependency_analyzer_mode = "off"
+  dependency_map = None
   compiler_classpath_jars = cjars
   optional_scalac_args = ""
   classpath_resources = []
@@ -170,23 +195,18 @@ def compile_scala(ctx,
     internal_plugin_jars = ctx.files._dependency_analyzer_plugin
     compiler_classpath_jars = transitive_compile_jars
 
-    direct_jars = _join_path(cjars.to_list())
-
-    transitive_cjars_list = transitive_compile_jars.to_list()
-    indirect_jars = _join_path(transitive_cjars_list)
-    indirect_targets = ",".join([labels[j.path] for j in transitive_cjars_list])
+    dependency_map = _write_dependency_map(
+        ctx, target_label, output, labels,
+        direct = cjars.to_list(),
+        indirect = transitive_compile_jars.to_list())
 
     current_target = str(target_label)
 
     optional_scalac_args = """
-DirectJars: {direct_jars}
-IndirectJars: {indirect_jars}
-IndirectTargets: {indirect_targets}
+DependencyMap: {dependency_map}
 CurrentTarget: {current_target}
         """.format(
-        direct_jars = direct_jars,
-        indirect_jars = indirect_jars,
-        indirect_targets = indirect_targets,
+        dependency_map = dependency_map.path,
         current_target = current_target)
 
   elif unused_dependency_checker_mode != "off":
@@ -194,22 +214,21 @@ CurrentTarget: {current_target}
     plugins = depset(transitive = [plugins, unused_dependency_plugin.files])
     internal_plugin_jars = ctx.files._unused_dependency_checker_plugin
 
-    cjars_list = cjars.to_list()
-    direct_jars = _join_path(cjars_list)
-    direct_targets = ",".join([labels[j.path] for j in cjars_list])
+    dependency_map = _write_dependency_map(
+        ctx, target_label, output, labels,
+        direct = cjars.to_list(),
+        indirect = [])
 
     ignored_targets = ",".join(unused_dependency_checker_ignored_targets)
 
     current_target = str(target_label)
 
     optional_scalac_args = """
-DirectJars: {direct_jars}
-DirectTargets: {direct_targets}
+DependencyMap: {dependency_map}
 IgnoredTargets: {ignored_targets}
 CurrentTarget: {current_target}
         """.format(
-        direct_jars = direct_jars,
-        direct_targets = direct_targets,
+        dependency_map = dependency_map.path,
         ignored_targets = ignored_targets,
         current_target = current_target)
 
@@ -275,10 +294,13 @@ StatsfileOutput: {statsfile_output}
       tools = [scalac_provider.scalac])
 
   outs = [output, statsfile]
-  ins = (
+  compile_ins = (
       compiler_classpath_jars.to_list() + all_srcjars.to_list() + list(sources)
-      + plugins_list + internal_plugin_jars + classpath_resources + resources +
-      resource_jars + [manifest, argfile] + scalac_inputs)
+      + plugins_list + internal_plugin_jars + scalac_inputs)
+  if dependency_map:
+    compile_ins.append(dependency_map)
+  ins = (compile_ins + classpath_resources + resources + resource_jars +
+         [manifest, argfile])
 
   ctx.actions.run(
       inputs = ins,
@@ -287,7 +309,10 @@ StatsfileOutput: {statsfile_output}
       input_manifests = scalac_input_manifests,
       mnemonic = "Scalac",
       progress_message = "scala %s" % target_label,
-      execution_requirements = {"supports-workers": "1"},
+      execution_requirements = {
+          "supports-workers": "1",
+          "supports-multiplex-workers": "1",
+      },
       #  when we run with a worker, the `@argfile.path` is removed and passed
       #  line by line as arguments in the protobuf. In that case,
       #  the rest of the arguments are passed to the process that
@@ -301,6 +326,46 @@ StatsfileOutput: {statsfile_output}
       ] + ["@" + argfile.path],
   )
 
+  if signature_output:
+    # A second, cheaper compile that stops after the pickler and only writes
+    # the Scala signatures. Dependents compile against them, so they need not
+    # wait for the bytecode of this target.
+    signature_argfile = ctx.actions.declare_file(
+        "%s_scalac_signature_input" % target_label.name, sibling = output)
+
+    ctx.actions.write(
+        output = signature_argfile,
+        content = scalac_args + optional_scalac_args +
+        "\nSignatureOutput: %s\n" % signature_output.path)
+
+    ctx.actions.run(
+        inputs = compile_ins + [signature_argfile],
+        outputs = [signature_output],
+        executable = scalac_provider.scalac.files_to_run.executable,
+        input_manifests = scalac_input_manifests,
+        mnemonic = "ScalacSignature",
+        progress_message = "scala signatures %s" % target_label,
+        execution_requirements = {
+            "supports-workers": "1",
+            "supports-multiplex-workers": "1",
+        },
+        arguments = [
+            "--jvm_flag=%s" % f for f in _expand_location(ctx, scalac_jvm_flags)
+        ] + ["@" + signature_argfile.path],
+    )
+
+def _write_dependency_map(ctx, target_label, output, labels, direct, indirect):
+  # The jar to target mappings for the dependency plugins, which would make for
+  # huge plugin options otherwise. A line with the number of direct and of
+  # indirect jars lets the plugins size their maps up front.
+  dependency_map = ctx.actions.declare_file(
+      "%s_dependency_map" % target_label.name, sibling = output)
+  lines = ["%s\t%s" % (len(direct), len(indirect))]
+  lines += ["direct\t%s\t%s" % (j.path, labels[j.path]) for j in direct]
+  lines += ["indirect\t%s\t%s" % (j.path, labels[j.path]) for j in indirect]
+  ctx.actions.write(output = dependency_map, content = "\n".join(lines) + "\n")
+  return dependency_map
+
 def _interim_java_provider_for_java_compilation(scala_output):
   return java_common.create_provider(
       use_ijar = False,
@@ -365,7 +430,8 @@ def _compile_or_empty(
         class_jar = ctx.outputs.jar,
         java_jar = False,
         full_jars = [ctx.outputs.jar],
-        ijars = [ctx.outputs.jar])
+        ijars = [ctx.outputs.jar],
+        signature_jar = None)
   else:
     in_srcjars = [
         f for f in ctx.files.srcs if f.basename.endswith(_srcjar_extension)
@@ -383,6 +449,15 @@ def _compile_or_empty(
     sources = [
         f for f in ctx.files.srcs if f.basename.endswith(_scala_extension)
     ] + java_srcs
+
+    # Signature jars only hold the Scala classes of a target, and macro
+    # implementations must be available as bytecode
+    toolchain = ctx.toolchains['@io_bazel_rules_scala//scala:toolchain_type']
+    signature_jar = None
+    if (toolchain.signature_jars and buildijar and not java_srcs and
+        not (all_srcjars and ctx.attr.expect_java_output)):
+      signature_jar = ctx.actions.declare_file(ctx.label.name + "-sig.jar")
+
     compile_scala(
         ctx,
         ctx.label,
@@ -405,7 +480,8 @@ def _compile_or_empty(
         ctx.attr._scala_provider[_ScalacProvider],
         unused_dependency_checker_mode = unused_dependency_checker_mode,
         unused_dependency_checker_ignored_targets =
-        unused_dependency_checker_ignored_targets)
+        unused_dependency_checker_ignored_targets,
+        signature_output = signature_jar)
 
     # build ijar if needed
     if buildijar:
@@ -434,7 +510,8 @@ def _compile_or_empty(
         class_jar = ctx.outputs.jar,
         java_jar = java_jar,
         full_jars = full_jars,
-        ijars = ijars)
+        ijars = ijars,
+        signature_jar = signature_jar)
 
 def _build_deployable(ctx, jars_list):
   # This calls bazels singlejar utility.
@@ -638,10 +715,20 @@ def _lib(ctx, base_classpath, non_macro_lib, unused_dependency_checker_mode,
 
   java_provider = create_java_provider(scalaattr, jars.transitive_compile_jars)
 
+  # Dependents may reach the jars of deps through transitive_compile_jars, and
+  # those of exports through compile_jars
+  signature_jars = _collect_signature_jars(ctx.attr.deps + ctx.attr.exports)
+  if outputs.signature_jar:
+    signature_jars[outputs.ijar.path] = outputs.signature_jar
+
   return struct(
       files = depset([ctx.outputs.jar]),  # Here is the default output
       scala = scalaattr,
-      providers = [java_provider, jars.jars2labels],
+      providers = [
+          java_provider,
+          jars.jars2labels,
+          SignatureJarsInfo(signature_jars = signature_jars),
+      ],
       runfiles = runfiles,
       jars_to_labels = jars.jars2labels,
     )
@@ -690,6 +777,7 @@ def _scala_binary_common(
     unused_dependency_checker_mode,
     unused_dependency_checker_ignored_targets,
     implicit_junit_deps_needed_for_java_compilation = [],
+    extra_runfiles = [],
 ):
   write_manifest(ctx)
   outputs = _compile_or_empty(
@@ -711,7 +799,8 @@ def _scala_binary_common(
 
   runfiles = ctx.runfiles(
       transitive_files = depset(
-          [ctx.outputs.executable, java_wrapper] + ctx.files._java_runtime,
+          [ctx.outputs.executable, java_wrapper] + ctx.files._java_runtime +
+          extra_runfiles,
           transitive = [rjars]),
       collect_data = True)
 
@@ -912,6 +1001,35 @@ def _gen_test_suite_flags_based_on_prefixes_and_suffixes(ctx, archives):
       printFlag = "-Dbazel.discover.classes.print.discovered=%s" %
       ctx.attr.print_discovered_classes)
 
+def _write_test_discovery_index(ctx, index, archives, rjars):
+  # Scans the test archives once when the target is built, instead of on
+  # every run of the tests
+  argfile = ctx.actions.declare_file(
+      "%s_test_discovery_input" % ctx.label.name, sibling = index)
+  ctx.actions.write(
+      output = argfile,
+      content = """
+IndexOutput: {index}
+Archives: {archives}
+Prefixes: {prefixes}
+Suffixes: {suffixes}
+Classpath: {classpath}
+""".format(
+          index = index.path,
+          archives = ",".join([archive.class_jar.path for archive in archives]),
+          prefixes = ",".join(ctx.attr.prefixes),
+          suffixes = ",".join(ctx.attr.suffixes),
+          classpath = ",".join([jar.path for jar in rjars])))
+
+  ctx.actions.run(
+      inputs = [argfile] + rjars,
+      outputs = [index],
+      executable = ctx.executable._test_discovery_indexer,
+      mnemonic = "ScalaTestDiscovery",
+      progress_message = "discovering tests of %s" % ctx.label,
+      arguments = [argfile.path],
+  )
+
 def _serialize_archives_short_path(archives):
   archives_short_path = ""
   for archive in archives:
@@ -949,6 +1067,14 @@ def scala_junit_test_impl(ctx):
   ]
 
   wrapper = _write_java_wrapper(ctx, "", "")
+  discovery_index = ctx.actions.declare_file(
+      "%s_test_discovery_index" % ctx.label.name)
+  extra_runfiles = [discovery_index]
+  shard_flags = []
+  if ctx.file.shard_timings:
+    extra_runfiles.append(ctx.file.shard_timings)
+    shard_flags.append("-Dbazel.discover.classes.shard.timings.file.path=%s" %
+                       ctx.file.shard_timings.short_path)
   out = _scala_binary_common(
       ctx,
       cjars,
@@ -961,13 +1087,20 @@ def scala_junit_test_impl(ctx):
       unused_dependency_checker_mode = unused_dependency_checker_mode,
       unused_dependency_checker_ignored_targets =
       unused_dependency_checker_ignored_targets,
+      extra_runfiles = extra_runfiles,
   )
+  _write_test_discovery_index(ctx, discovery_index, out.scala.outputs.jars,
+                              out.transitive_rjars.to_list())
   test_suite = _gen_test_suite_flags_based_on_prefixes_and_suffixes(
       ctx, out.scala.outputs.jars)
   launcherJvmFlags = [
       "-ea", test_suite.archiveFlag, test_suite.prefixesFlag,
-      test_suite.suffixesFlag, test_suite.printFlag, test_suite.testSuiteFlag
-  ]
+      test_suite.suffixesFlag, test_suite.printFlag, test_suite.testSuiteFlag,
+      "-Dbazel.discover.classes.index.file.path=%s" %
+      discovery_index.short_path,
+      "-Dbazel.discover.classes.parallelism=%s" % ctx.attr.parallel_test_classes,
+      "-Dbazel.discover.methods.parallelism=%s" % ctx.attr.parallel_test_methods,
+  ] + shard_flags
   _write_executable(
       ctx = ctx,
       rjars = out.transitive_rjars,
@@ -494,6 +494,17 @@ _scala_junit_test_attrs = {
     "suite_class": attr.string(
         default = "io.bazel.rulesscala.test_discovery.DiscoveredTestSuite"),
     "print_discovered_classes": attr.bool(default = False, mandatory = False),
+    # How many test classes, and test methods of each, to run at a time
+    "parallel_test_classes": attr.int(default = 1),
+    "parallel_test_methods": attr.int(default = 1),
+    # Durations of the tests in a previous run, to balance shards with
+    "shard_timings": attr.label(allow_single_file = True),
+    "_test_discovery_indexer": attr.label(
+        default = Label(
+            "//src/java/io/bazel/rulesscala/test_discovery:test_discovery_indexer"
+        ),
+        executable = True,
+        cfg = "host"),
     "_junit": attr.label(
         default = Label(
             "//external:io_bazel_rules_scala/dependency/junit/junit")),
@@ -1,7 +1,8 @@
 def _scala_toolchain_impl(ctx):
   toolchain = platform_common.ToolchainInfo(
       scalacopts = ctx.attr.scalacopts,
-      unused_dependency_checker_mode = ctx.attr.unused_dependency_checker_mode)
+      unused_dependency_checker_mode = ctx.attr.unused_dependency_checker_mode,
+      signature_jars = ctx.attr.signature_jars)
   return [toolchain]
 
 scala_toolchain = rule(
@@ -10,4 +11,5 @@ scala_toolchain = rule(
         'scalacopts': attr.string_list(),
         'unused_dependency_checker_mode': attr.string(
             default = "off", values = ["off", "warn", "error"]),
+        'signature_jars': attr.bool(default = False),
     })
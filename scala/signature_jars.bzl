@@ -0,0 +1,3 @@
+SignatureJarsInfo = provider(fields = [
+    "signature_jars",  # dict of path of an ijar to the signature jar scalac reads in its place
+])
@@ -685,6 +685,16 @@ public final class WorkerProtocol {
      */
     com.google.devtools.build.lib.worker.WorkerProtocol.InputOrBuilder getInputsOrBuilder(
         int index);
+
+    /**
+     * <code>optional int32 request_id = 3;</code>
+     *
+     * <pre>
+     * To support multiplex worker, each WorkRequest must have an unique ID. This ID should be
+     * attached unchanged to the WorkResponse.
+     * </pre>
+     */
+    int getRequestId();
   }
   /**
    * Protobuf type {@code blaze.worker.WorkRequest}
@@ -705,6 +715,7 @@ public final class WorkerProtocol {
     private WorkRequest() {
       arguments_ = com.google.protobuf.LazyStringArrayList.EMPTY;
       inputs_ = java.util.Collections.emptyList();
+      requestId_ = 0;
     }
 
     @java.lang.Override
@@ -756,6 +767,11 @@ public final class WorkerProtocol {
                         extensionRegistry));
                 break;
               }
+            case 24:
+              {
+                requestId_ = input.readInt32();
+                break;
+              }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -870,6 +886,20 @@ public final class WorkerProtocol {
       return inputs_.get(index);
     }
 
+    public static final int REQUEST_ID_FIELD_NUMBER = 3;
+    private int requestId_;
+    /**
+     * <code>optional int32 request_id = 3;</code>
+     *
+     * <pre>
+     * To support multiplex worker, each WorkRequest must have an unique ID. This ID should be
+     * attached unchanged to the WorkResponse.
+     * </pre>
+     */
+    public int getRequestId() {
+      return requestId_;
+    }
+
     private byte memoizedIsInitialized = -1;
 
     public final boolean isInitialized() {
@@ -888,6 +918,9 @@ public final class WorkerProtocol {
       for (int i = 0; i < inputs_.size(); i++) {
         output.writeMessage(2, inputs_.get(i));
       }
+      if (requestId_ != 0) {
+        output.writeInt32(3, requestId_);
+      }
     }
 
     public int getSerializedSize() {
@@ -906,6 +939,9 @@ public final class WorkerProtocol {
       for (int i = 0; i < inputs_.size(); i++) {
         size += com.google.protobuf.CodedOutputStream.computeMessageSize(2, inputs_.get(i));
       }
+      if (requestId_ != 0) {
+        size += com.google.protobuf.CodedOutputStream.computeInt32Size(3, requestId_);
+      }
       memoizedSize = size;
       return size;
     }
@@ -1045,6 +1081,8 @@ public final class WorkerProtocol {
         } else {
           inputsBuilder_.clear();
         }
+        requestId_ = 0;
+
         return this;
       }
 
@@ -1084,6 +1122,7 @@ public final class WorkerProtocol {
         } else {
           result.inputs_ = inputsBuilder_.build();
         }
+        result.requestId_ = requestId_;
         onBuilt();
         return result;
       }
@@ -1139,6 +1178,9 @@ public final class WorkerProtocol {
             }
           }
         }
+        if (other.getRequestId() != 0) {
+          setRequestId(other.getRequestId());
+        }
         onChanged();
         return this;
       }
@@ -1590,6 +1632,47 @@ public final class WorkerProtocol {
         return inputsBuilder_;
       }
 
+      private int requestId_;
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * To support multiplex worker, each WorkRequest must have an unique ID. This ID should be
+       * attached unchanged to the WorkResponse.
+       * </pre>
+       */
+      public int getRequestId() {
+        return requestId_;
+      }
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * To support multiplex worker, each WorkRequest must have an unique ID. This ID should be
+       * attached unchanged to the WorkResponse.
+       * </pre>
+       */
+      public Builder setRequestId(int value) {
+
+        requestId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * To support multiplex worker, each WorkRequest must have an unique ID. This ID should be
+       * attached unchanged to the WorkResponse.
+       * </pre>
+       */
+      public Builder clearRequestId() {
+
+        requestId_ = 0;
+        onChanged();
+        return this;
+      }
+
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
         return this;
@@ -1676,6 +1759,15 @@ public final class WorkerProtocol {
      * </pre>
      */
     com.google.protobuf.ByteString getOutputBytes();
+
+    /**
+     * <code>optional int32 request_id = 3;</code>
+     *
+     * <pre>
+     * This field must be set to the same request_id as the WorkRequest it is a response to.
+     * </pre>
+     */
+    int getRequestId();
   }
   /**
    * Protobuf type {@code blaze.worker.WorkResponse}
@@ -1696,6 +1788,7 @@ public final class WorkerProtocol {
     private WorkResponse() {
       exitCode_ = 0;
       output_ = "";
+      requestId_ = 0;
     }
 
     @java.lang.Override
@@ -1735,6 +1828,11 @@ public final class WorkerProtocol {
                 output_ = s;
                 break;
               }
+            case 24:
+              {
+                requestId_ = input.readInt32();
+                break;
+              }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -1812,6 +1910,19 @@ public final class WorkerProtocol {
       }
     }
 
+    public static final int REQUEST_ID_FIELD_NUMBER = 3;
+    private int requestId_;
+    /**
+     * <code>optional int32 request_id = 3;</code>
+     *
+     * <pre>
+     * This field must be set to the same request_id as the WorkRequest it is a response to.
+     * </pre>
+     */
+    public int getRequestId() {
+      return requestId_;
+    }
+
     private byte memoizedIsInitialized = -1;
 
     public final boolean isInitialized() {
@@ -1830,6 +1941,9 @@ public final class WorkerProtocol {
       if (!getOutputBytes().isEmpty()) {
         com.google.protobuf.GeneratedMessage.writeString(output, 2, output_);
       }
+      if (requestId_ != 0) {
+        output.writeInt32(3, requestId_);
+      }
     }
 
     public int getSerializedSize() {
@@ -1843,6 +1957,9 @@ public final class WorkerProtocol {
       if (!getOutputBytes().isEmpty()) {
         size += com.google.protobuf.GeneratedMessage.computeStringSize(2, output_);
       }
+      if (requestId_ != 0) {
+        size += com.google.protobuf.CodedOutputStream.computeInt32Size(3, requestId_);
+      }
       memoizedSize = size;
       return size;
     }
@@ -1976,6 +2093,8 @@ public final class WorkerProtocol {
 
         output_ = "";
 
+        requestId_ = 0;
+
         return this;
       }
 
@@ -2003,6 +2122,7 @@ public final class WorkerProtocol {
             new com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse(this);
         result.exitCode_ = exitCode_;
         result.output_ = output_;
+        result.requestId_ = requestId_;
         onBuilt();
         return result;
       }
@@ -2029,6 +2149,9 @@ public final class WorkerProtocol {
           output_ = other.output_;
           onChanged();
         }
+        if (other.getRequestId() != 0) {
+          setRequestId(other.getRequestId());
+        }
         onChanged();
         return this;
       }
@@ -2171,6 +2294,44 @@ public final class WorkerProtocol {
         return this;
       }
 
+      private int requestId_;
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * This field must be set to the same request_id as the WorkRequest it is a response to.
+       * </pre>
+       */
+      public int getRequestId() {
+        return requestId_;
+      }
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * This field must be set to the same request_id as the WorkRequest it is a response to.
+       * </pre>
+       */
+      public Builder setRequestId(int value) {
+
+        requestId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional int32 request_id = 3;</code>
+       *
+       * <pre>
+       * This field must be set to the same request_id as the WorkRequest it is a response to.
+       * </pre>
+       */
+      public Builder clearRequestId() {
+
+        requestId_ = 0;
+        onChanged();
+        return this;
+      }
+
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
         return this;
@@ -2255,10 +2416,11 @@ public final class WorkerProtocol {
           + "rotocol_java_proto_srcjar.srcjar.preproc"
           + "essed/worker_protocol.proto\022\014blaze.worke"
           + "r\"%\n\005Input\022\014\n\004path\030\001 \001(\t\022\016\n\006digest\030\002 \001(\014"
-          + "\"E\n\013WorkRequest\022\021\n\targuments\030\001 \003(\t\022#\n\006in"
-          + "puts\030\002 \003(\0132\023.blaze.worker.Input\"1\n\014WorkR"
-          + "esponse\022\021\n\texit_code\030\001 \001(\005\022\016\n\006output\030\002 \001"
-          + "(\tB&\n$com.google.devtools.build.lib.work"
+          + "\"Y\n\013WorkRequest\022\021\n\targuments\030\001 \003(\t\022#\n\006in"
+          + "puts\030\002 \003(\0132\023.blaze.worker.Input\022\022\n\nrequest"
+          + "_id\030\003 \001(\005\"E\n\014WorkResponse\022\021\n\texit_code\030\001 "
+          + "\001(\005\022\016\n\006output\030\002 \001(\t\022\022\n\nrequest_id\030\003 \001(\005"
+          + "B&\n$com.google.devtools.build.lib.work"
           + "erb\006proto3"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
@@ -2283,14 +2445,14 @@ public final class WorkerProtocol {
         new com.google.protobuf.GeneratedMessage.FieldAccessorTable(
             internal_static_blaze_worker_WorkRequest_descriptor,
             new java.lang.String[] {
-              "Arguments", "Inputs",
+              "Arguments", "Inputs", "RequestId",
             });
     internal_static_blaze_worker_WorkResponse_descriptor = getDescriptor().getMessageTypes().get(2);
     internal_static_blaze_worker_WorkResponse_fieldAccessorTable =
         new com.google.protobuf.GeneratedMessage.FieldAccessorTable(
             internal_static_blaze_worker_WorkResponse_descriptor,
             new java.lang.String[] {
-              "ExitCode", "Output",
+              "ExitCode", "Output", "RequestId",
             });
   }
 
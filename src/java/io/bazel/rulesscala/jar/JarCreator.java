@@ -14,6 +14,8 @@
 
 package io.bazel.rulesscala.jar;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -27,12 +29,24 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Map;
+import java.util.List;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
+import java.util.zip.ZipOutputStream;
 
 /**
  * A class for creating Jar files. Allows normalization of Jar entries by setting their timestamp to
@@ -43,11 +57,50 @@ public class JarCreator extends JarHelper {
   // Map from Jar entry names to files. Use TreeMap so we can establish a canonical order for the
   // entries regardless in what order they get added.
   private final TreeMap<String, Path> jarEntries = new TreeMap<>();
+  // Map from Jar entry names to contents for entries which are only held in memory.
+  private final TreeMap<String, byte[]> contentEntries = new TreeMap<>();
+  // Map from Jar entry names to entries of jars added with addJar.
+  private final TreeMap<String, RawJarEntry> rawEntries = new TreeMap<>();
   private String manifestFile;
   private String mainClass;
   private String targetLabel;
   private String injectingRuleKind;
 
+  /**
+   * Jars whose entries have less uncompressed content than this are compressed on the calling
+   * thread, since handing the entries to other threads does not pay off for small jars.
+   */
+  public static final long DEFAULT_PARALLEL_COMPRESSION_THRESHOLD = 4L << 20;
+
+  static final String PARALLEL_COMPRESSION_THRESHOLD_PROPERTY =
+      "io.bazel.rulesscala.jar.parallel_compression_threshold";
+
+  static final String COMPRESSION_THREADS_PROPERTY = "io.bazel.rulesscala.jar.compression_threads";
+
+  private static final int COMPRESSION_THREADS =
+      Integer.getInteger(COMPRESSION_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+  // Shared by all jars, so that compression neither competes for the common pool with other work
+  // of the worker nor grows with the number of jars created at the same time
+  private static final ExecutorService compressionExecutor =
+      Executors.newFixedThreadPool(
+          COMPRESSION_THREADS,
+          runnable -> {
+            Thread t = new Thread(runnable, "jar-compression");
+            t.setDaemon(true);
+            return t;
+          });
+
+  // Uncompressed content handed to a single compression task.
+  private static final long COMPRESSION_BATCH_SIZE = 1L << 20;
+  // Beyond these limits the zip format needs zip64 records, which only the serial path writes.
+  private static final int MAX_SEGMENTED_ENTRIES = 0xFFFF - 1;
+  private static final long MAX_SEGMENTED_INPUT_SIZE = 1L << 30;
+
+  private long parallelCompressionThreshold =
+      Long.getLong(
+          PARALLEL_COMPRESSION_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_COMPRESSION_THRESHOLD);
+
   /** @deprecated use {@link JarCreator(Path)} instead */
   @Deprecated
   public JarCreator(String fileName) {
@@ -66,6 +119,41 @@ public class JarCreator extends JarHelper {
    * @return true iff a new entry was added
    */
   public boolean addEntry(String entryName, Path path) {
+    return jarEntries.put(normalizeEntryName(entryName), path) == null;
+  }
+
+  /**
+   * Adds an entry with the given contents to the Jar file, normalizing the name. Directory entries
+   * must include the trailing '/' and have empty contents. An entry added this way takes precedence
+   * over a file system entry with the same name.
+   *
+   * @param entryName the name of the entry in the Jar file
+   * @param content the contents of the entry
+   * @return true iff a new entry was added
+   */
+  public boolean addEntry(String entryName, byte[] content) {
+    return contentEntries.put(normalizeEntryName(entryName), content) == null;
+  }
+
+  /**
+   * Adds an entry with the given contents to the Jar file, normalizing the name, along with entries
+   * for its parent directories. The entries are the same as the ones {@link #addDirectory(Path)}
+   * adds for a file of that name below the directory.
+   *
+   * @param entryName the name of the entry in the Jar file, with '/' as the directory separator
+   * @param content the contents of the entry
+   */
+  public void addEntryWithDirectories(String entryName, byte[] content) {
+    String name = normalizeEntryName(entryName);
+    int slash = name.indexOf('/');
+    while (slash > 0) {
+      contentEntries.putIfAbsent(name.substring(0, slash + 1), new byte[] {});
+      slash = name.indexOf('/', slash + 1);
+    }
+    contentEntries.put(name, content);
+  }
+
+  private static String normalizeEntryName(String entryName) {
     if (entryName.startsWith("/")) {
       entryName = entryName.substring(1);
     } else if (entryName.length() >= 3
@@ -78,7 +166,7 @@ public class JarCreator extends JarHelper {
     } else if (entryName.startsWith("./")) {
       entryName = entryName.substring(2);
     }
-    return jarEntries.put(entryName, path) == null;
+    return entryName;
   }
 
   /**
@@ -159,8 +247,33 @@ public class JarCreator extends JarHelper {
     }
   }
 
+  /**
+   * Adds the entries of a jar to the Jar file, along with entries for their parent directories.
+   * Compressed entries are copied with their compressed data as it is, rather than being inflated
+   * and compressed again. Entries of a jar take precedence over entries of jars added before it
+   * and over all other entries of the same name, as if the jars were extracted over the other
+   * entries in the order they are added.
+   *
+   * @param path the jar to add
+   */
   public void addJar(Path path) {
-    jarEntries.put(path.toAbsolutePath().toString(), path.toAbsolutePath());
+    try {
+      for (RawJarEntry entry : RawJarEntry.readEntries(path)) {
+        String name = normalizeEntryName(entry.name);
+        if (name.isEmpty()) {
+          continue;
+        }
+        int slash = name.indexOf('/');
+        while (slash >= 0 && slash < name.length() - 1) {
+          String dir = name.substring(0, slash + 1);
+          rawEntries.putIfAbsent(dir, RawJarEntry.directory(dir));
+          slash = name.indexOf('/', slash + 1);
+        }
+        rawEntries.put(name, entry.isDirectory() ? RawJarEntry.directory(name) : entry);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
   }
 
   /**
@@ -193,6 +306,14 @@ public class JarCreator extends JarHelper {
     this.injectingRuleKind = injectingRuleKind;
   }
 
+  /**
+   * Sets the amount of uncompressed content from which entries are compressed in parallel. The
+   * resulting jar is the same either way. A negative value disables parallel compression.
+   */
+  public void setParallelCompressionThreshold(long parallelCompressionThreshold) {
+    this.parallelCompressionThreshold = parallelCompressionThreshold;
+  }
+
   /**
    * Sets filename for the manifest content. If this is set the manifest will be read from this file
    * otherwise the manifest content will get generated on the fly.
@@ -240,6 +361,19 @@ public class JarCreator extends JarHelper {
    * @throws IOException if the Jar cannot be written or any of the entries cannot be read.
    */
   public void execute() throws IOException {
+    if (storageMethod == JarEntry.DEFLATED) {
+      long inputSize = inputSize();
+      boolean parallel =
+          parallelCompressionThreshold >= 0 && inputSize >= parallelCompressionThreshold;
+      if ((parallel || !rawEntries.isEmpty())
+          && inputSize <= MAX_SEGMENTED_INPUT_SIZE
+          && jarEntries.size() + contentEntries.size() + rawEntries.size()
+              <= MAX_SEGMENTED_ENTRIES) {
+        executeSegmented(parallel);
+        return;
+      }
+    }
+
     try (OutputStream os = Files.newOutputStream(jarPath);
         BufferedOutputStream bos = new BufferedOutputStream(os);
         JarOutputStream out = new JarOutputStream(bos)) {
@@ -247,12 +381,320 @@ public class JarCreator extends JarHelper {
       // Create the manifest entry in the Jar file
       writeManifestEntry(out, manifestContent());
 
-      for (Map.Entry<String, Path> entry : jarEntries.entrySet()) {
-        copyEntry(out, entry.getKey(), entry.getValue());
+      for (String name : entryNames()) {
+        RawJarEntry raw = rawEntries.get(name);
+        byte[] content = contentEntries.get(name);
+        if (raw != null) {
+          writeEntry(out, name, raw.content());
+        } else if (content != null) {
+          writeEntry(out, name, content);
+        } else {
+          copyEntry(out, name, jarEntries.get(name));
+        }
+      }
+    }
+  }
+
+  private TreeSet<String> entryNames() {
+    TreeSet<String> entryNames = new TreeSet<>(jarEntries.keySet());
+    entryNames.addAll(contentEntries.keySet());
+    entryNames.addAll(rawEntries.keySet());
+    return entryNames;
+  }
+
+  private long inputSize() throws IOException {
+    long size = 0;
+    for (Path path : jarEntries.values()) {
+      if (Files.isRegularFile(path)) {
+        size += Files.size(path);
+      }
+    }
+    for (byte[] content : contentEntries.values()) {
+      size += content.length;
+    }
+    for (RawJarEntry entry : rawEntries.values()) {
+      size += entry.compressedSize;
+    }
+    return size;
+  }
+
+  /** An entry that was claimed for the jar, along with where its contents come from. */
+  private static final class PendingEntry {
+    final String name;
+    final Path path;
+    final byte[] content;
+    final RawJarEntry raw;
+
+    PendingEntry(String name, Path path, byte[] content, RawJarEntry raw) {
+      this.name = name;
+      this.path = path;
+      this.content = content;
+      this.raw = raw;
+    }
+
+    boolean isRawCopy() {
+      return raw != null && raw.isRawCopyable();
+    }
+  }
+
+  /**
+   * Writes the jar from separately written segments of consecutive entries, which allows batches
+   * of entries to be compressed concurrently and compressed entries of added jars to be copied as
+   * they are. Apart from the copied entries, the jar is the same as the one of the serial path.
+   *
+   * <p>Each batch is written by its own {@link ZipOutputStream} into a buffer. Local headers,
+   * compressed data and data descriptors do not depend on where an entry ends up in the jar, so the
+   * buffers are concatenated in entry order and only the offsets in the central directory records
+   * of each batch need to be adjusted before the central directory is written at the end.
+   */
+  private void executeSegmented(boolean parallel) throws IOException {
+    // The manifest goes first, through a JarOutputStream so that it carries the jar marker.
+    Segment manifestSegment = new Segment();
+    try (JarOutputStream jar = new JarOutputStream(manifestSegment.buffer)) {
+      writeManifestEntry(jar, manifestContent());
+      manifestSegment.closeLocalSection();
+    }
+
+    // Decide on names and duplicates serially, exactly like the serial path does.
+    List<List<PendingEntry>> batches = new ArrayList<>();
+    List<PendingEntry> batch = new ArrayList<>();
+    long batchSize = 0;
+    for (String name : entryNames()) {
+      RawJarEntry raw = rawEntries.get(name);
+      byte[] content = contentEntries.get(name);
+      PendingEntry entry;
+      if (raw != null) {
+        entry = names.add(name) ? new PendingEntry(name, null, null, raw) : null;
+      } else if (content != null) {
+        entry = names.add(name) ? new PendingEntry(name, null, content, null) : null;
+      } else {
+        Path path = jarEntries.get(name);
+        String claimed = claimEntryName(name, path);
+        entry = claimed == null ? null : new PendingEntry(claimed, path, null, null);
+      }
+      if (entry != null) {
+        // Compressed and copied entries are written by different kinds of segments
+        if (!batch.isEmpty() && batch.get(0).isRawCopy() != entry.isRawCopy()) {
+          batches.add(batch);
+          batch = new ArrayList<>();
+          batchSize = 0;
+        }
+        batch.add(entry);
+        if (entry.raw != null) {
+          batchSize += entry.raw.compressedSize;
+        } else if (entry.content != null) {
+          batchSize += entry.content.length;
+        } else if (Files.isRegularFile(entry.path)) {
+          batchSize += Files.size(entry.path);
+        }
+        if (batchSize >= COMPRESSION_BATCH_SIZE) {
+          batches.add(batch);
+          batch = new ArrayList<>();
+          batchSize = 0;
+        }
+      }
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+
+    try (OutputStream os = Files.newOutputStream(jarPath);
+        BufferedOutputStream out = new BufferedOutputStream(os)) {
+      ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+      long offset = manifestSegment.writeTo(out, centralDirectory, 0);
+      int entryCount = manifestSegment.entryCount;
+
+      // Keep a bounded number of batches in flight, and write them in order as they complete.
+      int window = 2 * COMPRESSION_THREADS;
+      ArrayDeque<CompletableFuture<Segment>> inFlight = new ArrayDeque<>();
+      int next = 0;
+      while (next < batches.size() || !inFlight.isEmpty()) {
+        while (next < batches.size() && inFlight.size() < window) {
+          List<PendingEntry> entries = batches.get(next++);
+          inFlight.add(
+              parallel
+                  ? CompletableFuture.supplyAsync(() -> writeSegment(entries), compressionExecutor)
+                  : CompletableFuture.completedFuture(writeSegment(entries)));
+        }
+        Segment segment;
+        try {
+          segment = inFlight.remove().join();
+        } catch (CompletionException e) {
+          if (e.getCause() instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) e.getCause()).getCause();
+          }
+          throw e;
+        }
+        offset = segment.writeTo(out, centralDirectory, offset);
+        entryCount += segment.entryCount;
+      }
+
+      centralDirectory.writeTo(out);
+      writeEndOfCentralDirectory(out, entryCount, centralDirectory.size(), offset);
+    }
+  }
+
+  private Segment writeSegment(List<PendingEntry> entries) {
+    try {
+      return entries.get(0).isRawCopy() ? copyRaw(entries) : compress(entries);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private Segment compress(List<PendingEntry> entries) throws IOException {
+    Segment segment = new Segment();
+    try (ZipOutputStream zip = new ZipOutputStream(segment.buffer)) {
+      for (PendingEntry entry : entries) {
+        if (entry.raw != null) {
+          putEntry(zip, entry.name, entry.raw.content());
+        } else if (entry.content != null) {
+          putEntry(zip, entry.name, entry.content);
+        } else {
+          putFileEntry(zip, entry.name, entry.path);
+        }
+      }
+      segment.closeLocalSection();
+    }
+    return segment;
+  }
+
+  /**
+   * Writes entries of added jars with their compressed data as it is. The headers are laid out as
+   * {@link ZipOutputStream} lays them out for entries whose sizes are known up front.
+   */
+  private Segment copyRaw(List<PendingEntry> entries) throws IOException {
+    Segment segment = new Segment();
+    ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    for (PendingEntry entry : entries) {
+      if (verbose) {
+        System.err.println("adding " + entry.name);
+      }
+      RawJarEntry raw = entry.raw;
+      byte[] name = entry.name.getBytes(UTF_8);
+      int dosTime = dosTime(newEntryTimeMillis(entry.name));
+      int offset = segment.buffer.size();
+
+      byte[] header = new byte[Segment.LOCAL_HEADER_SIZE];
+      writeInt(header, 0, 0x04034b50L);
+      writeShort(header, 4, 20); // version needed to extract
+      writeShort(header, 6, 0x800); // names are UTF-8
+      writeShort(header, 8, JarEntry.DEFLATED);
+      writeInt(header, 10, dosTime);
+      writeInt(header, 14, raw.crc);
+      writeInt(header, 18, raw.compressedSize);
+      writeInt(header, 22, raw.size);
+      writeShort(header, 26, name.length);
+      segment.buffer.write(header);
+      segment.buffer.write(name);
+      segment.buffer.write(raw.rawData());
+
+      byte[] central = new byte[Segment.CENTRAL_HEADER_SIZE];
+      writeInt(central, 0, 0x02014b50L);
+      writeShort(central, 4, 20); // version made by
+      writeShort(central, 6, 20); // version needed to extract
+      writeShort(central, 8, 0x800);
+      writeShort(central, 10, JarEntry.DEFLATED);
+      writeInt(central, 12, dosTime);
+      writeInt(central, 16, raw.crc);
+      writeInt(central, 20, raw.compressedSize);
+      writeInt(central, 24, raw.size);
+      writeShort(central, 28, name.length);
+      writeInt(central, 42, offset);
+      centralDirectory.write(central);
+      centralDirectory.write(name);
+    }
+    segment.closeLocalSection();
+    centralDirectory.writeTo(segment.buffer);
+    segment.buffer.write(new byte[Segment.END_RECORD_SIZE]);
+    return segment;
+  }
+
+  /** Converts a time to the MS-DOS date and time format used by zip headers. */
+  private static int dosTime(long millis) {
+    LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (t.getYear() < 1980) {
+      return (1 << 21) | (1 << 16); // 1980-01-01
+    }
+    return (t.getYear() - 1980) << 25
+        | t.getMonthValue() << 21
+        | t.getDayOfMonth() << 16
+        | t.getHour() << 11
+        | t.getMinute() << 5
+        | t.getSecond() >> 1;
+  }
+
+  /** A standalone zip of consecutive entries, to be spliced into the output jar. */
+  private static final class Segment {
+    // Size of an end of central directory record without a comment.
+    private static final int END_RECORD_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    // The number of central directory records, counted by writeTo as it relocates them
+    int entryCount;
+    private int localSectionSize;
+
+    /** Marks the end of the local entries, anything written afterwards is the central directory. */
+    void closeLocalSection() {
+      localSectionSize = buffer.size();
+    }
+
+    /**
+     * Writes the local entries to {@code out} and their central directory records, relocated to
+     * {@code offset}, to {@code centralDirectory}. Returns the offset following the entries.
+     */
+    long writeTo(OutputStream out, ByteArrayOutputStream centralDirectory, long offset)
+        throws IOException {
+      byte[] bytes = buffer.toByteArray();
+      out.write(bytes, 0, localSectionSize);
+      int end = bytes.length - END_RECORD_SIZE;
+      for (int pos = localSectionSize; pos < end; ) {
+        int recordSize =
+            CENTRAL_HEADER_SIZE
+                + readShort(bytes, pos + 28)
+                + readShort(bytes, pos + 30)
+                + readShort(bytes, pos + 32);
+        writeInt(bytes, pos + 42, readInt(bytes, pos + 42) + offset);
+        centralDirectory.write(bytes, pos, recordSize);
+        pos += recordSize;
+        entryCount++;
       }
+      return offset + localSectionSize;
     }
   }
 
+  private static void writeEndOfCentralDirectory(
+      OutputStream out, int entryCount, int centralDirectorySize, long centralDirectoryOffset)
+      throws IOException {
+    byte[] record = new byte[Segment.END_RECORD_SIZE];
+    writeInt(record, 0, 0x06054b50L);
+    writeShort(record, 8, entryCount);
+    writeShort(record, 10, entryCount);
+    writeInt(record, 12, centralDirectorySize);
+    writeInt(record, 16, centralDirectoryOffset);
+    out.write(record);
+  }
+
+  private static int readShort(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+  }
+
+  private static long readInt(byte[] b, int off) {
+    return (readShort(b, off) | (long) readShort(b, off + 2) << 16);
+  }
+
+  private static void writeShort(byte[] b, int off, int v) {
+    b[off] = (byte) v;
+    b[off + 1] = (byte) (v >>> 8);
+  }
+
+  private static void writeInt(byte[] b, int off, long v) {
+    writeShort(b, off, (int) v);
+    writeShort(b, off + 2, (int) (v >>> 16));
+  }
+
   public static void buildJar(String[] args) throws IOException {
     if (args.length < 1) {
       System.err.println("usage: CreateJar [-m manifest] output [root directories]");
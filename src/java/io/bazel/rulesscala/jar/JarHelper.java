@@ -27,6 +27,7 @@ import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 import java.util.zip.CRC32;
+import java.util.zip.ZipOutputStream;
 
 /**
  * A simple helper class for creating Jar files. All Jar entries are sorted alphabetically. Allows
@@ -75,7 +76,7 @@ public class JarHelper {
   }
 
   public static boolean isJar(Path path) {
-    return path.getFileName().endsWith(".jar") && (Files.isRegularFile(path));
+    return path.getFileName().toString().endsWith(".jar") && (Files.isRegularFile(path));
   }
 
   /**
@@ -140,27 +141,32 @@ public class JarHelper {
    */
   protected void writeEntry(JarOutputStream out, String name, byte[] content) throws IOException {
     if (names.add(name)) {
-      // Create a new entry
-      JarEntry entry = new JarEntry(name);
-      entry.setTime(newEntryTimeMillis(name));
-      int size = content.length;
-      entry.setSize(size);
-      if (size == 0) {
-        entry.setMethod(JarEntry.STORED);
-        entry.setCrc(0);
-        out.putNextEntry(entry);
-      } else {
-        entry.setMethod(storageMethod);
-        if (storageMethod == JarEntry.STORED) {
-          CRC32 crc = new CRC32();
-          crc.update(content);
-          entry.setCrc(crc.getValue());
-        }
-        out.putNextEntry(entry);
-        out.write(content);
+      putEntry(out, name, content);
+    }
+  }
+
+  /** Writes an entry with specific contents to the stream, without checking for duplicates. */
+  protected void putEntry(ZipOutputStream out, String name, byte[] content) throws IOException {
+    // Create a new entry
+    JarEntry entry = new JarEntry(name);
+    entry.setTime(newEntryTimeMillis(name));
+    int size = content.length;
+    entry.setSize(size);
+    if (size == 0) {
+      entry.setMethod(JarEntry.STORED);
+      entry.setCrc(0);
+      out.putNextEntry(entry);
+    } else {
+      entry.setMethod(storageMethod);
+      if (storageMethod == JarEntry.STORED) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.setCrc(crc.getValue());
       }
-      out.closeEntry();
+      out.putNextEntry(entry);
+      out.write(content);
     }
+    out.closeEntry();
   }
 
   /**
@@ -190,49 +196,67 @@ public class JarHelper {
    * detected and their names automatically '/' suffixed.
    */
   protected void copyEntry(JarOutputStream out, String name, Path path) throws IOException {
-    if (!names.contains(name)) {
-      if (!Files.exists(path)) {
-        throw new FileNotFoundException(path.toAbsolutePath() + " (No such file or directory)");
-      }
-      boolean isDirectory = Files.isDirectory(path);
-      if (isDirectory && !name.endsWith("/")) {
-        name = name + '/'; // always normalize directory names before checking set
-      }
-      if (names.add(name)) {
-        if (verbose) {
-          System.err.println("adding " + path);
-        }
-        // Create a new entry
-        long size = isDirectory ? 0 : Files.size(path);
-        JarEntry outEntry = new JarEntry(name);
-        long newtime =
-            normalize ? normalizedTimestamp(name) : Files.getLastModifiedTime(path).toMillis();
-        outEntry.setTime(newtime);
-        outEntry.setSize(size);
-        if (size == 0L) {
-          outEntry.setMethod(JarEntry.STORED);
-          outEntry.setCrc(0);
-          out.putNextEntry(outEntry);
-        } else {
-          outEntry.setMethod(storageMethod);
-          if (storageMethod == JarEntry.STORED) {
-            // ZipFile requires us to calculate the CRC-32 for any STORED entry.
-            // It would be nicer to do this via DigestInputStream, but
-            // the architecture of ZipOutputStream requires us to know the CRC-32
-            // before we write the data to the stream.
-            byte[] bytes = Files.readAllBytes(path);
-            CRC32 crc = new CRC32();
-            crc.update(bytes);
-            outEntry.setCrc(crc.getValue());
-            out.putNextEntry(outEntry);
-            out.write(bytes);
-          } else {
-            out.putNextEntry(outEntry);
-            Files.copy(path, out);
-          }
-        }
-        out.closeEntry();
+    name = claimEntryName(name, path);
+    if (name != null) {
+      putFileEntry(out, name, path);
+    }
+  }
+
+  /**
+   * Records that an entry for {@code path} will be written, returning its name with directory names
+   * '/' suffixed, or null if an entry of that name was already written.
+   */
+  protected String claimEntryName(String name, Path path) throws IOException {
+    if (names.contains(name)) {
+      return null;
+    }
+    if (!Files.exists(path)) {
+      throw new FileNotFoundException(path.toAbsolutePath() + " (No such file or directory)");
+    }
+    if (Files.isDirectory(path) && !name.endsWith("/")) {
+      name = name + '/'; // always normalize directory names before checking set
+    }
+    return names.add(name) ? name : null;
+  }
+
+  /**
+   * Copies a file or directory entry from the file system into the stream, without checking for
+   * duplicates.
+   */
+  protected void putFileEntry(ZipOutputStream out, String name, Path path) throws IOException {
+    if (verbose) {
+      System.err.println("adding " + path);
+    }
+    boolean isDirectory = Files.isDirectory(path);
+    // Create a new entry
+    long size = isDirectory ? 0 : Files.size(path);
+    JarEntry outEntry = new JarEntry(name);
+    long newtime =
+        normalize ? normalizedTimestamp(name) : Files.getLastModifiedTime(path).toMillis();
+    outEntry.setTime(newtime);
+    outEntry.setSize(size);
+    if (size == 0L) {
+      outEntry.setMethod(JarEntry.STORED);
+      outEntry.setCrc(0);
+      out.putNextEntry(outEntry);
+    } else {
+      outEntry.setMethod(storageMethod);
+      if (storageMethod == JarEntry.STORED) {
+        // ZipFile requires us to calculate the CRC-32 for any STORED entry.
+        // It would be nicer to do this via DigestInputStream, but
+        // the architecture of ZipOutputStream requires us to know the CRC-32
+        // before we write the data to the stream.
+        byte[] bytes = Files.readAllBytes(path);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        outEntry.setCrc(crc.getValue());
+        out.putNextEntry(outEntry);
+        out.write(bytes);
+      } else {
+        out.putNextEntry(outEntry);
+        Files.copy(path, out);
       }
     }
+    out.closeEntry();
   }
 }
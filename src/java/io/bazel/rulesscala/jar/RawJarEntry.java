@@ -0,0 +1,249 @@
+// Copyright 2014 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.bazel.rulesscala.jar;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * An entry of an input jar, which can be copied into another jar with its compressed data as it
+ * is. Entries are read from the central directory of a memory mapped jar; jars using zip64 or
+ * encryption are read through {@link ZipFile} instead and their entries are held in memory.
+ */
+final class RawJarEntry {
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_HEADER_SIZE = 46;
+  private static final int END_SIGNATURE = 0x06054b50;
+  private static final int END_RECORD_SIZE = 22;
+
+  final String name;
+  final int method;
+  final long crc;
+  final long compressedSize;
+  final long size;
+
+  // Either the mapped jar and the offset of the entry's local header, or the entry's contents.
+  private final ByteBuffer jar;
+  private final int localHeaderOffset;
+  private final byte[] content;
+
+  private RawJarEntry(
+      String name,
+      int method,
+      long crc,
+      long compressedSize,
+      long size,
+      ByteBuffer jar,
+      int localHeaderOffset,
+      byte[] content) {
+    this.name = name;
+    this.method = method;
+    this.crc = crc;
+    this.compressedSize = compressedSize;
+    this.size = size;
+    this.jar = jar;
+    this.localHeaderOffset = localHeaderOffset;
+    this.content = content;
+  }
+
+  static RawJarEntry directory(String name) {
+    return new RawJarEntry(name, ZipEntry.STORED, 0, 0, 0, null, 0, new byte[0]);
+  }
+
+  boolean isDirectory() {
+    return name.endsWith("/");
+  }
+
+  /** Whether the compressed data of this entry can be copied into a deflated jar as it is. */
+  boolean isRawCopyable() {
+    return content == null && method == ZipEntry.DEFLATED && size > 0;
+  }
+
+  /** Returns the compressed data of the entry, as stored in the input jar. */
+  byte[] rawData() throws IOException {
+    ByteBuffer buf = jar.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    if (buf.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("invalid local header for " + name);
+    }
+    int dataOffset =
+        localHeaderOffset
+            + LOCAL_HEADER_SIZE
+            + (buf.getShort(localHeaderOffset + 26) & 0xffff)
+            + (buf.getShort(localHeaderOffset + 28) & 0xffff);
+    byte[] data = new byte[(int) compressedSize];
+    buf.position(dataOffset);
+    buf.get(data);
+    return data;
+  }
+
+  /** Returns the uncompressed contents of the entry. */
+  byte[] content() throws IOException {
+    if (content != null) {
+      return content;
+    }
+    byte[] data = rawData();
+    if (method == ZipEntry.STORED) {
+      return data;
+    }
+    Inflater inflater = new Inflater(true);
+    try {
+      // The inflater needs an extra dummy byte when reading raw deflate data
+      byte[] input = new byte[data.length + 1];
+      System.arraycopy(data, 0, input, 0, data.length);
+      inflater.setInput(input);
+      byte[] out = new byte[(int) size];
+      int n = 0;
+      while (n < out.length && !inflater.finished()) {
+        int read = inflater.inflate(out, n, out.length - n);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        n += read;
+      }
+      if (n != out.length) {
+        throw new ZipException("unexpected end of data for " + name);
+      }
+      return out;
+    } catch (DataFormatException e) {
+      throw new ZipException("invalid compressed data for " + name + ": " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+
+  /** Reads the entries of a jar in the order of its central directory. */
+  static List<RawJarEntry> readEntries(Path path) throws IOException {
+    ByteBuffer jar;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        return readEntriesFromZipFile(path);
+      }
+      jar = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    jar.order(ByteOrder.LITTLE_ENDIAN);
+
+    int end = jar.limit() - END_RECORD_SIZE;
+    int minEnd = Math.max(0, end - 0xffff);
+    while (end >= minEnd && jar.getInt(end) != END_SIGNATURE) {
+      end--;
+    }
+    if (end < minEnd) {
+      throw new ZipException("not a zip file: " + path);
+    }
+    int count = jar.getShort(end + 10) & 0xffff;
+    long centralDirectoryOffset = jar.getInt(end + 16) & 0xffffffffL;
+    if (count == 0xffff || centralDirectoryOffset == 0xffffffffL) {
+      return readEntriesFromZipFile(path);
+    }
+
+    List<RawJarEntry> entries = new ArrayList<>(count);
+    int pos = (int) centralDirectoryOffset;
+    for (int i = 0; i < count; i++) {
+      if (jar.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("invalid central directory in " + path);
+      }
+      int flag = jar.getShort(pos + 8) & 0xffff;
+      int method = jar.getShort(pos + 10) & 0xffff;
+      long crc = jar.getInt(pos + 16) & 0xffffffffL;
+      long compressedSize = jar.getInt(pos + 20) & 0xffffffffL;
+      long size = jar.getInt(pos + 24) & 0xffffffffL;
+      int nameLength = jar.getShort(pos + 28) & 0xffff;
+      int extraLength = jar.getShort(pos + 30) & 0xffff;
+      int commentLength = jar.getShort(pos + 32) & 0xffff;
+      long localHeaderOffset = jar.getInt(pos + 42) & 0xffffffffL;
+      if ((flag & 1) != 0
+          || compressedSize == 0xffffffffL
+          || size == 0xffffffffL
+          || localHeaderOffset == 0xffffffffL
+          || (method != ZipEntry.STORED && method != ZipEntry.DEFLATED)) {
+        return readEntriesFromZipFile(path);
+      }
+      byte[] nameBytes = new byte[nameLength];
+      ByteBuffer nameBuf = jar.duplicate();
+      nameBuf.position(pos + CENTRAL_HEADER_SIZE);
+      nameBuf.get(nameBytes);
+      entries.add(
+          new RawJarEntry(
+              new String(nameBytes, UTF_8),
+              method,
+              crc,
+              compressedSize,
+              size,
+              jar,
+              (int) localHeaderOffset,
+              null));
+      pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  private static List<RawJarEntry> readEntriesFromZipFile(Path path) throws IOException {
+    List<RawJarEntry> entries = new ArrayList<>();
+    try (ZipFile zip = new ZipFile(path.toFile())) {
+      Enumeration<? extends ZipEntry> e = zip.entries();
+      while (e.hasMoreElements()) {
+        ZipEntry entry = e.nextElement();
+        byte[] content;
+        try (InputStream in = zip.getInputStream(entry)) {
+          content = readFully(in);
+        }
+        entries.add(
+            new RawJarEntry(
+                entry.getName(),
+                ZipEntry.STORED,
+                entry.getCrc(),
+                content.length,
+                content.length,
+                null,
+                0,
+                content));
+      }
+    }
+    return entries;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = in.read(buf)) != -1) {
+      out.write(buf, 0, n);
+    }
+    return out.toByteArray();
+  }
+}
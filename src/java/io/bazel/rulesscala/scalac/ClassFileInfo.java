@@ -0,0 +1,172 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The parts of a class file the incremental compiler needs: the {@code SourceFile} attribute and
+ * the pickled Scala signature, which describes the API of a top level class or object.
+ */
+final class ClassFileInfo {
+  private static final String SCALA_SIGNATURE = "Lscala/reflect/ScalaSignature;";
+  private static final String SCALA_LONG_SIGNATURE = "Lscala/reflect/ScalaLongSignature;";
+
+  /** The name of the source file the class was compiled from, or null */
+  final String sourceFile;
+  /** The encoded Scala signature, or null if the class has none */
+  final byte[] scalaSignature;
+
+  private ClassFileInfo(String sourceFile, byte[] scalaSignature) {
+    this.sourceFile = sourceFile;
+    this.scalaSignature = scalaSignature;
+  }
+
+  static ClassFileInfo read(InputStream stream) throws IOException {
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readInt() != 0xCAFEBABE) {
+      throw new IOException("not a class file");
+    }
+    in.readUnsignedShort(); // minor version
+    in.readUnsignedShort(); // major version
+
+    // Only utf8 constants are kept, as raw bytes
+    int constantCount = in.readUnsignedShort();
+    byte[][] utf8 = new byte[constantCount][];
+    for (int i = 1; i < constantCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1: // Utf8
+          utf8[i] = new byte[in.readUnsignedShort()];
+          in.readFully(utf8[i]);
+          break;
+        case 7: // Class
+        case 8: // String
+        case 16: // MethodType
+        case 19: // Module
+        case 20: // Package
+          skip(in, 2);
+          break;
+        case 15: // MethodHandle
+          skip(in, 3);
+          break;
+        case 3: // Integer
+        case 4: // Float
+        case 9: // Fieldref
+        case 10: // Methodref
+        case 11: // InterfaceMethodref
+        case 12: // NameAndType
+        case 17: // Dynamic
+        case 18: // InvokeDynamic
+          skip(in, 4);
+          break;
+        case 5: // Long
+        case 6: // Double
+          skip(in, 8);
+          i++; // takes two slots
+          break;
+        default:
+          throw new IOException("unknown constant pool tag " + tag);
+      }
+    }
+
+    skip(in, 6); // access flags, this class, super class
+    skip(in, 2 * in.readUnsignedShort()); // interfaces
+    for (int members = 0; members < 2; members++) { // fields, then methods
+      int count = in.readUnsignedShort();
+      for (int i = 0; i < count; i++) {
+        skip(in, 6); // access flags, name, descriptor
+        skipAttributes(in);
+      }
+    }
+
+    String sourceFile = null;
+    byte[] scalaSignature = null;
+    int attributes = in.readUnsignedShort();
+    for (int i = 0; i < attributes; i++) {
+      String name = string(utf8, in.readUnsignedShort());
+      int length = in.readInt();
+      if ("SourceFile".equals(name)) {
+        sourceFile = string(utf8, in.readUnsignedShort());
+      } else if ("RuntimeVisibleAnnotations".equals(name)) {
+        int annotations = in.readUnsignedShort();
+        for (int a = 0; a < annotations; a++) {
+          byte[] signature = readAnnotation(in, utf8);
+          if (signature != null) {
+            scalaSignature = signature;
+          }
+        }
+      } else {
+        skip(in, length);
+      }
+    }
+    return new ClassFileInfo(sourceFile, scalaSignature);
+  }
+
+  /** Reads an annotation, returning its bytes if it is a Scala signature. */
+  private static byte[] readAnnotation(DataInputStream in, byte[][] utf8) throws IOException {
+    String type = string(utf8, in.readUnsignedShort());
+    boolean isSignature = SCALA_SIGNATURE.equals(type) || SCALA_LONG_SIGNATURE.equals(type);
+    ByteArrayOutputStream signature = isSignature ? new ByteArrayOutputStream() : null;
+    int pairs = in.readUnsignedShort();
+    for (int i = 0; i < pairs; i++) {
+      in.readUnsignedShort(); // element name, the signature annotations only have "bytes"
+      readElementValue(in, utf8, signature);
+    }
+    return isSignature ? signature.toByteArray() : null;
+  }
+
+  /** Skips an element value, collecting the bytes of any string constants into {@code out}. */
+  private static void readElementValue(
+      DataInputStream in, byte[][] utf8, ByteArrayOutputStream out) throws IOException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+      case 's':
+        int index = in.readUnsignedShort();
+        if (out != null && utf8[index] != null) {
+          out.write(utf8[index]);
+        }
+        break;
+      case 'e':
+        skip(in, 4);
+        break;
+      case '@':
+        readAnnotation(in, utf8);
+        break;
+      case '[':
+        int values = in.readUnsignedShort();
+        for (int i = 0; i < values; i++) {
+          readElementValue(in, utf8, out);
+        }
+        break;
+      default: // primitive constants and classes
+        skip(in, 2);
+    }
+  }
+
+  private static void skipAttributes(DataInputStream in) throws IOException {
+    int count = in.readUnsignedShort();
+    for (int i = 0; i < count; i++) {
+      skip(in, 2);
+      skip(in, in.readInt());
+    }
+  }
+
+  private static void skip(DataInputStream in, int n) throws IOException {
+    while (n > 0) {
+      int skipped = in.skipBytes(n);
+      if (skipped <= 0) {
+        in.readByte(); // throws at the end of the stream
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private static String string(byte[][] utf8, int index) {
+    return utf8[index] == null ? null : new String(utf8[index], UTF_8);
+  }
+}
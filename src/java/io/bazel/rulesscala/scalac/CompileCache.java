@@ -0,0 +1,221 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk cache of compile outputs, keyed by a digest of the compile options and the contents of
+ * every input, so that a compile with inputs that were seen before (e.g. after a {@code bazel
+ * clean}, or when switching back to a branch) does not run scalac again.
+ *
+ * <p>Each entry is a {@code <key>.jar} holding the output jar and a {@code <key>.stats} holding the
+ * statsfile. The modification time of the statsfile records when the entry was last used, and the
+ * least recently used entries are evicted when the cache grows past its size limit. Entries are
+ * written to a temporary file and moved into place, so several workers may share a directory.
+ *
+ * <p>This is enabled by setting {@code io.bazel.rulesscala.scalac.compile_cache} on the worker to
+ * the cache directory. Compiler warnings are not replayed on a hit.
+ */
+class CompileCache {
+  static final String DIRECTORY_PROPERTY = "io.bazel.rulesscala.scalac.compile_cache";
+  static final String MAX_SIZE_PROPERTY = "io.bazel.rulesscala.scalac.compile_cache.max_size";
+  static final String LINK_PROPERTY = "io.bazel.rulesscala.scalac.compile_cache.link";
+
+  // Bump this when the outputs for the same inputs change, e.g. a different jar layout
+  private static final String FORMAT_VERSION = "1";
+
+  private final Path directory;
+  private final long maxSize;
+  private final boolean link;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  CompileCache(Path directory, long maxSize, boolean link) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.link = link;
+  }
+
+  /** Returns the cache configured by system properties, or null if it is disabled. */
+  static CompileCache fromSystemProperties() {
+    String dir = System.getProperty(DIRECTORY_PROPERTY);
+    if (dir == null || dir.isEmpty()) {
+      return null;
+    }
+    Path directory = Paths.get(dir);
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to create compile cache " + directory, e);
+    }
+    return new CompileCache(
+        directory, Long.getLong(MAX_SIZE_PROPERTY, 1L << 30), Boolean.getBoolean(LINK_PROPERTY));
+  }
+
+  /**
+   * Computes the key of a compile. The output locations are left out, everything else in the
+   * arguments is included along with the digests of all inputs and of the compiler itself.
+   */
+  String keyFor(List<String> args, CompileOptions ops) throws IOException {
+    MessageDigest md = FileDigests.newDigest();
+    FileDigests.update(md, FORMAT_VERSION);
+    md.update(FileDigests.compilerDigest());
+    for (String arg : args) {
+      if (!arg.startsWith("JarOutput:") && !arg.startsWith("StatsfileOutput:")) {
+        FileDigests.update(md, arg);
+      }
+    }
+
+    List<String> inputs = new ArrayList<>();
+    inputs.add(ops.manifestPath);
+    // which deps are direct is only in here, and decides the strict and unused deps errors
+    inputs.add(ops.dependencyMap);
+    inputs.addAll(Arrays.asList(ops.classpath.split(File.pathSeparator)));
+    for (String plugin : ops.pluginArgs) {
+      inputs.add(plugin.substring("-Xplugin:".length()));
+    }
+    inputs.addAll(Arrays.asList(ops.files));
+    inputs.addAll(Arrays.asList(ops.javaFiles));
+    inputs.addAll(Arrays.asList(ops.sourceJars));
+    inputs.addAll(ops.resourceFiles.keySet());
+    inputs.addAll(Arrays.asList(ops.resourceJars));
+    inputs.addAll(Arrays.asList(ops.classpathResourceFiles));
+    for (String input : inputs) {
+      if (!input.isEmpty()) {
+        FileDigests.update(md, input);
+        md.update(FileDigests.digest(Paths.get(input)));
+      }
+    }
+    return FileDigests.toHex(md.digest());
+  }
+
+  /**
+   * Writes the outputs of the compile with the given key from the cache, returning false if there
+   * is no such entry.
+   */
+  boolean fetch(String key, CompileOptions ops) throws IOException {
+    Path jar = directory.resolve(key + ".jar");
+    Path stats = directory.resolve(key + ".stats");
+    Path output = Paths.get(ops.outputName);
+    try {
+      List<String> statsLines = new ArrayList<>(Files.readAllLines(stats, UTF_8));
+      Files.deleteIfExists(output);
+      if (link) {
+        Files.createLink(output, jar);
+      } else {
+        Files.copy(jar, output);
+      }
+      Files.setLastModifiedTime(stats, FileTime.fromMillis(System.currentTimeMillis()));
+      hits.incrementAndGet();
+      statsLines.addAll(statsLines(true));
+      Files.write(Paths.get(ops.statsfile), statsLines, UTF_8);
+      return true;
+    } catch (NoSuchFileException e) {
+      // not cached, or evicted by another worker in the meantime
+      Files.deleteIfExists(output);
+      misses.incrementAndGet();
+      return false;
+    }
+  }
+
+  /** Adds the outputs of a finished compile to the cache and evicts old entries if needed. */
+  void store(String key, CompileOptions ops) throws IOException {
+    Path statsfile = Paths.get(ops.statsfile);
+    List<String> statsLines =
+        Files.exists(statsfile) ? Files.readAllLines(statsfile, UTF_8) : new ArrayList<>();
+
+    // The jar goes first, an entry only counts as present once its statsfile exists
+    Path tmpJar = Files.createTempFile(directory, key, ".jar.tmp");
+    Path tmpStats = Files.createTempFile(directory, key, ".stats.tmp");
+    try {
+      Files.copy(Paths.get(ops.outputName), tmpJar, StandardCopyOption.REPLACE_EXISTING);
+      Files.write(tmpStats, statsLines, UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
+      Files.move(tmpJar, directory.resolve(key + ".jar"), StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tmpStats, directory.resolve(key + ".stats"), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmpJar);
+      Files.deleteIfExists(tmpStats);
+    }
+    evict();
+  }
+
+  /** The lines describing the cache that are added to the statsfile of a compile. */
+  List<String> statsLines(boolean hit) {
+    return Arrays.asList(
+        "compile_cache=" + (hit ? "hit" : "miss"),
+        "compile_cache_hits=" + hits.get(),
+        "compile_cache_misses=" + misses.get());
+  }
+
+  private synchronized void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    long size = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          if (name.endsWith(".stats")) {
+            entries.add(file);
+          }
+          if (name.endsWith(".stats") || name.endsWith(".jar")) {
+            size += Files.size(file);
+          }
+        } catch (NoSuchFileException e) {
+          // evicted by another worker
+        }
+      }
+    }
+    if (size <= maxSize) {
+      return;
+    }
+
+    Map<Path, Long> lastUsed = new HashMap<>();
+    for (Path stats : entries) {
+      try {
+        lastUsed.put(stats, Files.getLastModifiedTime(stats).toMillis());
+      } catch (NoSuchFileException e) {
+        lastUsed.put(stats, 0L);
+      }
+    }
+    entries.sort(Comparator.comparing(lastUsed::get));
+    for (Path stats : entries) {
+      if (size <= maxSize) {
+        break;
+      }
+      String name = stats.getFileName().toString();
+      String key = name.substring(0, name.length() - ".stats".length());
+      Path jar = stats.resolveSibling(key + ".jar");
+      size -= deleteAndGetSize(stats);
+      size -= deleteAndGetSize(jar);
+    }
+  }
+
+  private static long deleteAndGetSize(Path file) throws IOException {
+    try {
+      long size = Files.size(file);
+      Files.delete(file);
+      return size;
+    } catch (NoSuchFileException e) {
+      return 0;
+    }
+  }
+}
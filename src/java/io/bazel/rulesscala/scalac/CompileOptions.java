@@ -1,10 +1,16 @@
 package io.bazel.rulesscala.scalac;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class CompileOptions {
+  // The jars in the lists are shared by many targets, so the elements are interned.
+  private static final int MAX_INTERNED_STRINGS = 1 << 18;
+  private static final Map<String, String> strings = new ConcurrentHashMap<>();
+
   public final String outputName;
   public final String manifestPath;
   public final String[] scalaOpts;
@@ -19,18 +25,23 @@ public class CompileOptions {
   public final String resourceStripPrefix;
   public final String[] resourceJars;
   public final String[] classpathResourceFiles;
-  public final String[] directJars;
-  public final String[] directTargets;
   public final String[] ignoredTargets;
-  public final String[] indirectJars;
-  public final String[] indirectTargets;
+  /** A file mapping the direct and indirect jars to their targets, for the dependency plugins. */
+  public final String dependencyMap;
   public final String dependencyAnalyzerMode;
   public final String unusedDependencyCheckerMode;
   public final String currentTarget;
   public final String statsfile;
+  /**
+   * When set, only the Scala signatures of the sources are written to this jar, and neither the
+   * output jar nor the statsfile are written.
+   */
+  public final String signatureOutput;
+
+  private final Map<String, String> argMap;
 
   public CompileOptions(List<String> args) {
-    Map<String, String> argMap = buildArgMap(args);
+    argMap = buildArgMap(args);
 
     outputName = getOrError(argMap, "JarOutput", "Missing required arg JarOutput");
     manifestPath = getOrError(argMap, "Manifest", "Missing required arg Manifest");
@@ -54,17 +65,15 @@ public class CompileOptions {
     resourceJars = getCommaList(argMap, "ResourceJars");
     classpathResourceFiles = getCommaList(argMap, "ClasspathResourceSrcs");
 
-    directJars = getCommaList(argMap, "DirectJars");
-    directTargets = getCommaList(argMap, "DirectTargets");
     ignoredTargets = getCommaList(argMap, "IgnoredTargets");
-    indirectJars = getCommaList(argMap, "IndirectJars");
-    indirectTargets = getCommaList(argMap, "IndirectTargets");
+    dependencyMap = getOrEmpty(argMap, "DependencyMap");
 
     dependencyAnalyzerMode = getOrElse(argMap, "DependencyAnalyzerMode", "off");
     unusedDependencyCheckerMode = getOrElse(argMap, "UnusedDependencyCheckerMode", "off");
     currentTarget = getOrElse(argMap, "CurrentTarget", "NA");
 
     statsfile = getOrError(argMap, "StatsfileOutput", "Missing required arg StatsfileOutput");
+    signatureOutput = getOrEmpty(argMap, "SignatureOutput");
   }
 
   private static Map<String, Resource> getResources(Map<String, String> args) {
@@ -92,31 +101,87 @@ public class CompileOptions {
     return res;
   }
 
+  /**
+   * Returns the comma separated list argument {@code key} with ':' as separator instead, the way
+   * the compiler plugins take lists. With {@code encodeTargets} the elements are bazel labels, and
+   * the ':' in them are replaced with ';'.
+   */
+  public String getColonList(String key, boolean encodeTargets) {
+    String v = getOrEmpty(argMap, key);
+    int end = v.length();
+    while (end > 0 && v.charAt(end - 1) == ',') {
+      end--;
+    }
+    char[] chars = new char[end];
+    for (int i = 0; i < end; i++) {
+      char c = v.charAt(i);
+      if (c == ',') {
+        c = ':';
+      } else if (c == ':' && encodeTargets) {
+        c = ';';
+      }
+      chars[i] = c;
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Maps each {@code <key>: <value>} line to its value, skipping lines without a value. Values are
+   * taken as they are, so the long lists in them are only scanned once they are needed.
+   */
   private static HashMap<String, String> buildArgMap(List<String> lines) {
-    HashMap hm = new HashMap();
+    HashMap<String, String> hm = new HashMap<>();
     for (String line : lines) {
-      String[] lSplit = line.split(": ");
-      if (lSplit.length > 2) {
-        throw new RuntimeException("Bad arg, should have at most 1 space/2 spans. arg: " + line);
+      int sep = line.indexOf(": ");
+      if (sep < 0) {
+        continue;
       }
-      if (lSplit.length > 1) {
-        hm.put(lSplit[0], lSplit[1]);
+      String value = line.substring(sep + 2);
+      int next = value.indexOf(": ");
+      if (next >= 0) {
+        if (!value.substring(next).replace(": ", "").isEmpty()) {
+          throw new RuntimeException("Bad arg, should have at most 1 space/2 spans. arg: " + line);
+        }
+        value = value.substring(0, next);
+      }
+      if (!value.isEmpty()) {
+        hm.put(line.substring(0, sep), value);
       }
     }
     return hm;
   }
 
+  /**
+   * Splits a comma separated list like {@link String#split} does, dropping trailing empty elements.
+   */
   private static String[] getCommaList(Map<String, String> m, String k) {
-    if (m.containsKey(k)) {
-      String v = m.get(k);
-      if ("".equals(v)) {
-        return new String[] {};
-      } else {
-        return v.split(",");
-      }
-    } else {
+    String v = m.get(k);
+    if (v == null || v.isEmpty()) {
       return new String[] {};
     }
+    List<String> elements = new ArrayList<>();
+    int start = 0;
+    while (start <= v.length()) {
+      int end = v.indexOf(',', start);
+      if (end < 0) {
+        end = v.length();
+      }
+      elements.add(intern(v.substring(start, end)));
+      start = end + 1;
+    }
+    int size = elements.size();
+    while (size > 0 && elements.get(size - 1).isEmpty()) {
+      size--;
+    }
+    return elements.subList(0, size).toArray(new String[size]);
+  }
+
+  private static String intern(String s) {
+    if (strings.size() > MAX_INTERNED_STRINGS) {
+      strings.clear();
+    }
+    String interned = strings.putIfAbsent(s, s);
+    return interned != null ? interned : s;
   }
 
   private static String getOrEmpty(Map<String, String> m, String k) {
@@ -0,0 +1,98 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * SHA-256 digests of worker inputs. Digests of files are kept for the lifetime of the worker and
+ * revalidated by size and modification time, so unchanged classpath jars are only read once.
+ */
+final class FileDigests {
+  private static final Map<String, FileDigest> digests = new ConcurrentHashMap<>();
+  private static byte[] compilerDigest;
+
+  private FileDigests() {}
+
+  static byte[] digest(Path path) throws IOException {
+    long size = Files.size(path);
+    long lastModified = Files.getLastModifiedTime(path).toMillis();
+    String key = path.toAbsolutePath().toString();
+    FileDigest cached = digests.get(key);
+    if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+      return cached.digest;
+    }
+
+    MessageDigest md = newDigest();
+    if (Files.isRegularFile(path)) {
+      try (InputStream in = Files.newInputStream(path)) {
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          md.update(buf, 0, n);
+        }
+      }
+    }
+    byte[] digest = md.digest();
+    digests.put(key, new FileDigest(size, lastModified, digest));
+    return digest;
+  }
+
+  /** The digest of the worker's own classpath, i.e. of the compiler and its plugins. */
+  static synchronized byte[] compilerDigest() throws IOException {
+    if (compilerDigest == null) {
+      MessageDigest md = newDigest();
+      for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+        Path path = Paths.get(entry);
+        if (Files.isRegularFile(path)) {
+          md.update(digest(path));
+        }
+      }
+      compilerDigest = md.digest();
+    }
+    return compilerDigest;
+  }
+
+  /** Adds a string to the digest, terminated so that consecutive strings can't run together. */
+  static void update(MessageDigest md, String s) {
+    md.update(s.getBytes(UTF_8));
+    md.update((byte) 0);
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private static final class FileDigest {
+    final long size;
+    final long lastModified;
+    final byte[] digest;
+
+    FileDigest(long size, long lastModified, byte[] digest) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.digest = digest;
+    }
+  }
+}
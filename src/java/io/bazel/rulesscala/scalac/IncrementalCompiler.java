@@ -0,0 +1,344 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.bazel.rulesscala.io_utils.DeleteRecursively;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Recompiles only the changed sources of a target, when their API did not change.
+ *
+ * <p>For every target the classes of the last successful compile are kept in a directory of their
+ * own, along with an analysis file that records for each source its digest, the class files it
+ * produced and a hash of its API. Class files are attributed to sources through their {@code
+ * SourceFile} attribute, and the API of a source is the set of its top level classes along with
+ * their pickled Scala signatures.
+ *
+ * <p>When only existing sources changed, their classes are deleted and just those sources are
+ * recompiled against the remaining classes. If that changed the API of any of them, or sources
+ * were added or removed, or anything else about the compile changed, everything is compiled from
+ * scratch. So sources are never compiled against a stale API, and the classes are the same as
+ * those of a full compile.
+ *
+ * <p>This is enabled by setting {@code io.bazel.rulesscala.scalac.incremental} on the worker to the
+ * directory to keep the classes in. Targets with Java sources, source jars, the unused dependency
+ * checker or cross-file optimizations are always compiled in full.
+ */
+class IncrementalCompiler {
+  static final String DIRECTORY_PROPERTY = "io.bazel.rulesscala.scalac.incremental";
+
+  // Bump this when the analysis format or the way classes are attributed changes
+  private static final String FORMAT_VERSION = "1";
+
+  // Argfile keys which do not affect the classes of a target
+  private static final String[] IGNORED_ARGS = {
+    "ClasspathResourceSrcs:",
+    "Files:",
+    "JarOutput:",
+    "Manifest:",
+    "PrintCompileTime:",
+    "Resource",
+    "StatsfileOutput:",
+  };
+
+  /** Compiles the given sources against {@code classpath} into {@code outputDir}. */
+  interface Compiler {
+    void compile(String[] sources, String classpath, Path outputDir) throws Exception;
+  }
+
+  private final Path directory;
+
+  IncrementalCompiler(Path directory) {
+    this.directory = directory;
+  }
+
+  /** Returns the incremental compiler configured by system properties, or null if disabled. */
+  static IncrementalCompiler fromSystemProperties() {
+    String dir = System.getProperty(DIRECTORY_PROPERTY);
+    if (dir == null || dir.isEmpty()) {
+      return null;
+    }
+    Path directory = Paths.get(dir);
+    try {
+      Files.createDirectories(directory);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to create incremental directory " + directory, e);
+    }
+    return new IncrementalCompiler(directory);
+  }
+
+  /** Whether the classes of the target can be attributed to its sources and compiled separately. */
+  static boolean supports(CompileOptions ops) {
+    if (ops.files.length == 0
+        || ops.javaFiles.length > 0
+        || !"off".equals(ops.unusedDependencyCheckerMode)) {
+      return false;
+    }
+    for (String jar : ops.sourceJars) {
+      if (!jar.isEmpty()) {
+        return false;
+      }
+    }
+    for (String opt : ops.scalaOpts) {
+      if (opt.startsWith("-opt") || opt.startsWith("-Yopt") || opt.startsWith("-Yinline")) {
+        return false;
+      }
+    }
+    Set<String> names = new HashSet<>();
+    for (String file : ops.files) {
+      if (!file.endsWith(".scala") || !names.add(Paths.get(file).getFileName().toString())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Brings the classes of the target up to date and returns the directory holding them. Adds the
+   * kind of compile that was done and the number of compiled sources to {@code stats}.
+   */
+  Path compile(List<String> args, CompileOptions ops, Compiler compiler, List<String> stats)
+      throws Exception {
+    MessageDigest targetDigest = FileDigests.newDigest();
+    FileDigests.update(targetDigest, ops.outputName);
+    Path targetDir = directory.resolve(FileDigests.toHex(targetDigest.digest()));
+    Path classesDir = targetDir.resolve("classes");
+    Path analysisFile = targetDir.resolve("analysis");
+
+    String setup = setupKey(args, ops);
+    Map<String, String> digests = new LinkedHashMap<>();
+    for (String file : ops.files) {
+      digests.put(file, FileDigests.toHex(FileDigests.digest(Paths.get(file))));
+    }
+
+    Analysis previous = Analysis.read(analysisFile, setup);
+    // Until this compile succeeds the classes can't be trusted
+    Files.deleteIfExists(analysisFile);
+
+    List<String> changed = new ArrayList<>();
+    boolean full = previous == null || !previous.sources.keySet().equals(digests.keySet());
+    if (!full) {
+      for (Map.Entry<String, String> e : digests.entrySet()) {
+        if (!e.getValue().equals(previous.sources.get(e.getKey()).digest)) {
+          changed.add(e.getKey());
+        }
+      }
+    }
+
+    Analysis analysis = null;
+    if (!full && !changed.isEmpty()) {
+      for (String source : changed) {
+        for (String classFile : previous.sources.get(source).classFiles) {
+          Files.deleteIfExists(classesDir.resolve(classFile));
+        }
+      }
+      compiler.compile(
+          changed.toArray(new String[0]),
+          classesDir.toString() + File.pathSeparator + ops.classpath,
+          classesDir);
+      analysis = analyze(classesDir, setup, digests);
+      for (String source : changed) {
+        if (analysis == null
+            || !analysis.sources.get(source).apiHash.equals(previous.sources.get(source).apiHash)) {
+          full = true;
+          break;
+        }
+      }
+    }
+
+    if (full) {
+      if (Files.exists(classesDir)) {
+        DeleteRecursively.run(classesDir);
+      }
+      Files.createDirectories(classesDir);
+      compiler.compile(ops.files, ops.classpath, classesDir);
+      analysis = analyze(classesDir, setup, digests);
+      stats.add("incremental=full");
+      stats.add("incremental_compiled_sources=" + ops.files.length);
+    } else {
+      if (analysis == null) {
+        analysis = previous;
+      }
+      stats.add("incremental=" + (changed.isEmpty() ? "unchanged" : "partial"));
+      stats.add("incremental_compiled_sources=" + changed.size());
+    }
+
+    if (analysis != null) {
+      analysis.write(analysisFile);
+    }
+    return classesDir;
+  }
+
+  private static String setupKey(List<String> args, CompileOptions ops) throws IOException {
+    MessageDigest md = FileDigests.newDigest();
+    FileDigests.update(md, FORMAT_VERSION);
+    md.update(FileDigests.compilerDigest());
+    for (String arg : args) {
+      if (!isIgnored(arg)) {
+        FileDigests.update(md, arg);
+      }
+    }
+    for (String entry : ops.classpath.split(File.pathSeparator)) {
+      if (!entry.isEmpty()) {
+        md.update(FileDigests.digest(Paths.get(entry)));
+      }
+    }
+    for (String plugin : ops.pluginArgs) {
+      md.update(FileDigests.digest(Paths.get(plugin.substring("-Xplugin:".length()))));
+    }
+    if (!ops.dependencyMap.isEmpty()) {
+      md.update(FileDigests.digest(Paths.get(ops.dependencyMap)));
+    }
+    return FileDigests.toHex(md.digest());
+  }
+
+  private static boolean isIgnored(String arg) {
+    for (String prefix : IGNORED_ARGS) {
+      if (arg.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Attributes the class files in {@code classesDir} to the sources. Returns null if a class file
+   * can't be attributed, in which case the next compile will be a full one.
+   */
+  private static Analysis analyze(Path classesDir, String setup, Map<String, String> digests)
+      throws IOException {
+    Map<String, String> sourcesByName = new HashMap<>();
+    Map<String, SourceAnalysis> sources = new LinkedHashMap<>();
+    Map<String, TreeMap<String, byte[]>> signatures = new HashMap<>();
+    for (Map.Entry<String, String> e : digests.entrySet()) {
+      sourcesByName.put(Paths.get(e.getKey()).getFileName().toString(), e.getKey());
+      sources.put(e.getKey(), new SourceAnalysis(e.getValue(), null, new ArrayList<>()));
+      signatures.put(e.getKey(), new TreeMap<>());
+    }
+
+    boolean[] attributed = {true};
+    Files.walkFileTree(
+        classesDir,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            String classFile =
+                classesDir.relativize(file).toString().replace(File.separatorChar, '/');
+            ClassFileInfo info;
+            try (InputStream in = Files.newInputStream(file)) {
+              info = ClassFileInfo.read(in);
+            }
+            String source = info.sourceFile == null ? null : sourcesByName.get(info.sourceFile);
+            if (source == null) {
+              attributed[0] = false;
+              return FileVisitResult.TERMINATE;
+            }
+            sources.get(source).classFiles.add(classFile);
+            if (info.scalaSignature != null) {
+              signatures.get(source).put(classFile, info.scalaSignature);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    if (!attributed[0]) {
+      return null;
+    }
+
+    for (Map.Entry<String, SourceAnalysis> e : sources.entrySet()) {
+      MessageDigest md = FileDigests.newDigest();
+      for (Map.Entry<String, byte[]> signature : signatures.get(e.getKey()).entrySet()) {
+        FileDigests.update(md, signature.getKey());
+        md.update(signature.getValue());
+      }
+      SourceAnalysis source = e.getValue();
+      e.setValue(
+          new SourceAnalysis(source.digest, FileDigests.toHex(md.digest()), source.classFiles));
+    }
+    return new Analysis(setup, sources);
+  }
+
+  private static final class SourceAnalysis {
+    final String digest;
+    final String apiHash;
+    final List<String> classFiles;
+
+    SourceAnalysis(String digest, String apiHash, List<String> classFiles) {
+      this.digest = digest;
+      this.apiHash = apiHash;
+      this.classFiles = classFiles;
+    }
+  }
+
+  /**
+   * The analysis of a target, stored as a line with the setup key followed by a tab separated line
+   * per source: path, digest, API hash and the comma separated class files.
+   */
+  private static final class Analysis {
+    final String setup;
+    final Map<String, SourceAnalysis> sources;
+
+    Analysis(String setup, Map<String, SourceAnalysis> sources) {
+      this.setup = setup;
+      this.sources = sources;
+    }
+
+    /** Reads the analysis, returning null if there is none or it is for a different setup. */
+    static Analysis read(Path file, String setup) throws IOException {
+      if (!Files.exists(file)) {
+        return null;
+      }
+      List<String> lines = Files.readAllLines(file, UTF_8);
+      if (lines.isEmpty() || !lines.get(0).equals(setup)) {
+        return null;
+      }
+      Map<String, SourceAnalysis> sources = new LinkedHashMap<>();
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split("\t", -1);
+        List<String> classFiles = new ArrayList<>();
+        for (String classFile : fields[3].split(",")) {
+          if (!classFile.isEmpty()) {
+            classFiles.add(classFile);
+          }
+        }
+        sources.put(fields[0], new SourceAnalysis(fields[1], fields[2], classFiles));
+      }
+      return new Analysis(setup, sources);
+    }
+
+    void write(Path file) throws IOException {
+      List<String> lines = new ArrayList<>();
+      lines.add(setup);
+      for (Map.Entry<String, SourceAnalysis> e : sources.entrySet()) {
+        SourceAnalysis source = e.getValue();
+        lines.add(
+            e.getKey()
+                + "\t"
+                + source.digest
+                + "\t"
+                + source.apiHash
+                + "\t"
+                + String.join(",", source.classFiles));
+      }
+      Files.write(file, lines, UTF_8);
+    }
+  }
+}
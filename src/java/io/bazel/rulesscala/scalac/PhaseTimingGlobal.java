@@ -0,0 +1,44 @@
+package io.bazel.rulesscala.scalac;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import scala.reflect.internal.Phase;
+import scala.tools.nsc.Global;
+import scala.tools.nsc.Settings;
+import scala.tools.nsc.reporters.Reporter;
+
+/**
+ * A Global that records how long each phase of its runs takes. Scalac reports the end of every
+ * phase through {@link Global#informTime}, which otherwise only prints with {@code -verbose}.
+ */
+class PhaseTimingGlobal extends Global {
+  private final Map<String, Long> phaseTimes = new LinkedHashMap<>();
+
+  PhaseTimingGlobal(Settings settings, Reporter reporter) {
+    super(settings, reporter);
+  }
+
+  @Override
+  public void informTime(String msg, long start) {
+    super.informTime(msg, start);
+    Phase phase = globalPhase();
+    if (phase != null && msg.equals(phase.description())) {
+      phaseTimes.merge(phase.name(), currentTime() - start, Long::sum);
+    }
+  }
+
+  /**
+   * Returns statsfile lines with the time spent in each phase since the last call, in the order
+   * the phases ran, and starts over.
+   */
+  List<String> takePhaseTimes() {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Long> e : phaseTimes.entrySet()) {
+      lines.add("phase_time." + e.getKey() + "=" + e.getValue());
+    }
+    phaseTimes.clear();
+    return lines;
+  }
+}
@@ -0,0 +1,116 @@
+package io.bazel.rulesscala.scalac;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import scala.tools.nsc.Global;
+
+/**
+ * Keeps warm scalac {@link Global} instances around between worker requests so that the symbol
+ * table of the classpath does not have to be reloaded for every compile.
+ *
+ * <p>A cached instance is keyed by the scalac options (including plugins and plugin params) and a
+ * fingerprint of every classpath entry (path, size and last modified time). Instances are checked
+ * out exclusively for the duration of a compile and only returned to the cache when the compile
+ * finished without errors, so a broken symbol table is never reused.
+ *
+ * <p>This is enabled with the {@code io.bazel.rulesscala.scalac.resident_compiler} system property
+ * on the worker, e.g. via {@code scalac_jvm_flags}.
+ */
+class ResidentCompilerCache {
+  static final String ENABLED_PROPERTY = "io.bazel.rulesscala.scalac.resident_compiler";
+  static final String MAX_ENTRIES_PROPERTY =
+      "io.bazel.rulesscala.scalac.resident_compiler.max_entries";
+
+  private final int maxEntries;
+  private final LinkedHashMap<Key, Global> compilers;
+  private long hits = 0;
+  private long misses = 0;
+
+  ResidentCompilerCache(int maxEntries) {
+    this.maxEntries = maxEntries;
+    this.compilers =
+        new LinkedHashMap<Key, Global>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, Global> eldest) {
+            return size() > ResidentCompilerCache.this.maxEntries;
+          }
+        };
+  }
+
+  static boolean isEnabled() {
+    return Boolean.getBoolean(ENABLED_PROPERTY);
+  }
+
+  static ResidentCompilerCache fromSystemProperties() {
+    return new ResidentCompilerCache(Integer.getInteger(MAX_ENTRIES_PROPERTY, 1));
+  }
+
+  /**
+   * Removes and returns the compiler cached for the given key, or null if there is none. The
+   * caller owns the returned compiler until it is handed back with {@link #release}.
+   */
+  synchronized Global acquire(Key key) {
+    Global global = compilers.remove(key);
+    if (global == null) {
+      misses += 1;
+    } else {
+      hits += 1;
+    }
+    return global;
+  }
+
+  /** Makes a compiler that compiled successfully available to later requests with the same key. */
+  synchronized void release(Key key, Global global) {
+    compilers.put(key, global);
+  }
+
+  synchronized long hits() {
+    return hits;
+  }
+
+  synchronized long misses() {
+    return misses;
+  }
+
+  static Key keyFor(String[] settingsArgs, String classpath) {
+    return new Key(Arrays.asList(settingsArgs), fingerprint(classpath));
+  }
+
+  private static List<String> fingerprint(String classpath) {
+    List<String> entries = new ArrayList<>();
+    for (String entry : classpath.split(File.pathSeparator)) {
+      File f = new File(entry);
+      entries.add(entry + "@" + f.length() + "@" + f.lastModified());
+    }
+    return entries;
+  }
+
+  static final class Key {
+    private final List<String> settingsArgs;
+    private final List<String> classpathFingerprint;
+
+    private Key(List<String> settingsArgs, List<String> classpathFingerprint) {
+      this.settingsArgs = settingsArgs;
+      this.classpathFingerprint = classpathFingerprint;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return settingsArgs.equals(other.settingsArgs)
+          && classpathFingerprint.equals(other.classpathFingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * settingsArgs.hashCode() + classpathFingerprint.hashCode();
+    }
+  }
+}
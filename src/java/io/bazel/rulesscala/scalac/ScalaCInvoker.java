@@ -29,8 +29,7 @@ public class ScalaCInvoker extends GenericWorker {
 
   @Override
   protected void setupOutput(PrintStream ps) {
-    System.setOut(ps);
-    System.setErr(ps);
+    super.setupOutput(ps);
     Console$.MODULE$.setErrDirect(ps);
     Console$.MODULE$.setOutDirect(ps);
   }
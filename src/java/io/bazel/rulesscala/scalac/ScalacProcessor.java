@@ -11,17 +11,44 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.jar.JarEntry;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.jar.JarFile;
+import java.util.zip.ZipFile;
 import org.apache.commons.io.IOUtils;
+import scala.Option;
+import scala.Tuple2;
+import scala.collection.JavaConverters;
+import scala.reflect.internal.Symbols;
+import scala.reflect.internal.pickling.PickleBuffer;
+import scala.reflect.internal.util.SourceFile;
+import scala.reflect.io.AbstractFile;
+import scala.reflect.io.VirtualDirectory;
+import scala.reflect.io.VirtualFile;
+import scala.tools.nsc.CompilerCommand;
 import scala.tools.nsc.Driver;
+import scala.tools.nsc.Global;
 import scala.tools.nsc.MainClass;
+import scala.tools.nsc.Settings;
 import scala.tools.nsc.reporters.ConsoleReporter;
 
 class ScalacProcessor implements Processor {
+  /**
+   * When set, sources from source jars are read into memory and handed to scalac directly instead
+   * of being extracted to a temporary directory first.
+   */
+  static final String IN_MEMORY_SOURCES_PROPERTY = "io.bazel.rulesscala.scalac.in_memory_sources";
+
+  /**
+   * When set, scalac writes class files to memory and they are added to the output jar from there,
+   * instead of being written to a temporary directory and read back by the JarCreator.
+   */
+  static final String IN_MEMORY_OUTPUT_PROPERTY = "io.bazel.rulesscala.scalac.in_memory_output";
+
   /** This is the reporter field for scalac, which we want to access */
   private static Field reporterField;
 
@@ -34,28 +61,89 @@ class ScalacProcessor implements Processor {
     }
   }
 
+  /** Warm compilers kept across requests, or null when the resident compiler is disabled */
+  private final ResidentCompilerCache residentCompilers =
+      ResidentCompilerCache.isEnabled() ? ResidentCompilerCache.fromSystemProperties() : null;
+
+  private final boolean inMemorySources = Boolean.getBoolean(IN_MEMORY_SOURCES_PROPERTY);
+
+  private final boolean inMemoryOutput = Boolean.getBoolean(IN_MEMORY_OUTPUT_PROPERTY);
+
+  /** On-disk cache of compile outputs, or null when it is disabled */
+  private final CompileCache compileCache = CompileCache.fromSystemProperties();
+
+  /** Keeps classes across requests to recompile only changed sources, or null when disabled */
+  private final IncrementalCompiler incrementalCompiler =
+      IncrementalCompiler.fromSystemProperties();
+
   @Override
   public void processRequest(List<String> args) throws Exception {
     Path tmpPath = null;
     try {
       CompileOptions ops = new CompileOptions(args);
 
+      if (!ops.signatureOutput.isEmpty()) {
+        writeSignatureJar(ops);
+        return;
+      }
+
+      String cacheKey = null;
+      if (compileCache != null) {
+        cacheKey = compileCache.keyFor(args, ops);
+        if (compileCache.fetch(cacheKey, ops)) {
+          return;
+        }
+      }
+
       Path outputPath = FileSystems.getDefault().getPath(ops.outputName);
       tmpPath = Files.createTempDirectory(outputPath.getParent(), "tmp");
 
-      List<File> jarFiles = extractSourceJars(ops, outputPath.getParent());
-      List<File> scalaJarFiles = filterFilesByExtension(jarFiles, ".scala");
-      List<File> javaJarFiles = filterFilesByExtension(jarFiles, ".java");
+      // Compile time goes first as build_time, followed by a breakdown of the whole request
+      AtomicLong buildTime = new AtomicLong();
+      List<String> stats = new ArrayList<>();
+      stats.add("source_files=" + ops.files.length);
+      stats.add("source_bytes=" + totalSize(ops.files));
+
+      String[] scalaSources;
+      List<AbstractFile> srcJarSources;
+      int javaJarFileCount;
+      long start = System.currentTimeMillis();
+      if (inMemorySources) {
+        // javac reads the source jars itself, so nothing has to be written to disk
+        srcJarSources = readSourceJars(ops.sourceJars);
+        javaJarFileCount = filterFilesByExtension(srcJarSources, ".java").size();
+        scalaSources = ops.files;
+        long srcJarBytes = 0;
+        for (AbstractFile source : srcJarSources) {
+          srcJarBytes += (Integer) source.sizeOption().get();
+        }
+        stats.add("srcjar_files=" + srcJarSources.size());
+        stats.add("srcjar_bytes=" + srcJarBytes);
+      } else {
+        List<File> jarFiles = extractSourceJars(ops, outputPath.getParent());
+        List<File> scalaJarFiles = filterFilesByExtension(jarFiles, ".scala");
+        List<File> javaJarFiles = filterFilesByExtension(jarFiles, ".java");
+        srcJarSources = Collections.emptyList();
+        javaJarFileCount = javaJarFiles.size();
+        scalaSources = collectSrcJarSources(ops.files, scalaJarFiles, javaJarFiles);
+        long srcJarBytes = 0;
+        for (File file : jarFiles) {
+          srcJarBytes += file.length();
+        }
+        stats.add("srcjar_files=" + jarFiles.size());
+        stats.add("srcjar_bytes=" + srcJarBytes);
+      }
+      stats.add("srcjar_extraction_time=" + (System.currentTimeMillis() - start));
 
-      if (!ops.expectJavaOutput && !javaJarFiles.isEmpty()) {
+      if (!ops.expectJavaOutput && javaJarFileCount > 0) {
         throw new RuntimeException(
             "Found java files in source jars but expect Java output is set to false");
       }
 
-      String[] scalaSources = collectSrcJarSources(ops.files, scalaJarFiles, javaJarFiles);
-
-      String[] javaSources = GenericWorker.appendToString(ops.javaFiles, javaJarFiles);
-      if (scalaSources.length == 0 && javaSources.length == 0) {
+      if (scalaSources.length == 0
+          && srcJarSources.isEmpty()
+          && ops.javaFiles.length == 0
+          && javaJarFileCount == 0) {
         throw new RuntimeException("Must have input files from either source jars or local files.");
       }
 
@@ -63,36 +151,132 @@ class ScalacProcessor implements Processor {
        * Compile scala sources if available (if there are none, we will simply compile java
        * sources).
        */
-      if (scalaSources.length > 0) {
-        compileScalaSources(ops, scalaSources, tmpPath);
+      VirtualDirectory classOutput = null;
+      Path classesDir = null;
+      if (incrementalCompiler != null && IncrementalCompiler.supports(ops)) {
+        classesDir =
+            incrementalCompiler.compile(
+                args,
+                ops,
+                (sources, classpath, outputDir) ->
+                    buildTime.addAndGet(
+                        compileScalaSources(
+                            ops,
+                            classpath,
+                            sources,
+                            Collections.emptyList(),
+                            outputDir,
+                            null,
+                            stats,
+                            null)),
+                stats);
+      } else if (scalaSources.length > 0 || !srcJarSources.isEmpty()) {
+        classOutput = inMemoryOutput ? new VirtualDirectory("(memory)", Option.empty()) : null;
+        buildTime.addAndGet(
+            compileScalaSources(
+                ops,
+                ops.classpath,
+                scalaSources,
+                srcJarSources,
+                tmpPath,
+                classOutput,
+                stats,
+                null));
       }
 
+      start = System.currentTimeMillis();
       /** Copy the resources */
       copyResources(ops.resourceFiles, ops.resourceStripPrefix, tmpPath);
 
-      /** Extract and copy resources from resource jars */
-      copyResourceJars(ops.resourceJars, tmpPath);
-
       /** Copy classpath resources to root of jar */
       copyClasspathResourcesToRoot(ops.classpathResourceFiles, tmpPath);
-
+      stats.add(
+          "resource_files=" + (ops.resourceFiles.size() + ops.classpathResourceFiles.length));
+      stats.add(
+          "resource_bytes="
+              + (totalSize(ops.resourceFiles.keySet().toArray(new String[0]))
+                  + totalSize(ops.classpathResourceFiles)));
+      stats.add("resource_copy_time=" + (System.currentTimeMillis() - start));
+
+      start = System.currentTimeMillis();
       /** Now build the output jar */
-      String[] jarCreatorArgs = {"-m", ops.manifestPath, outputPath.toString(), tmpPath.toString()};
-      JarCreator.main(jarCreatorArgs);
+      JarCreator jarCreator = new JarCreator(outputPath);
+      jarCreator.setManifestFile(ops.manifestPath);
+      jarCreator.addDirectory(tmpPath);
+      if (classesDir != null) {
+        jarCreator.addDirectory(classesDir);
+      }
+      if (classOutput != null) {
+        addVirtualDirectory(jarCreator, classOutput, "");
+      }
+      /** Merge in the resource jars, their entries win over any others as when extracting them */
+      for (String resourceJar : ops.resourceJars) {
+        jarCreator.addJar(Paths.get(resourceJar));
+      }
+      jarCreator.setNormalize(true);
+      jarCreator.setCompression(true);
+      jarCreator.execute();
+      try (ZipFile jar = new ZipFile(outputPath.toFile())) {
+        stats.add("jar_entries=" + jar.size());
+      }
+      stats.add("jar_bytes=" + Files.size(outputPath));
+      stats.add("jar_creation_time=" + (System.currentTimeMillis() - start));
+
+      start = System.currentTimeMillis();
+      removeTmp(tmpPath);
+      tmpPath = null;
+      stats.add("tmp_cleanup_time=" + (System.currentTimeMillis() - start));
+
+      writeStatsfile(ops, buildTime.get(), stats);
+
+      if (cacheKey != null) {
+        compileCache.store(cacheKey, ops);
+        Files.write(
+            Paths.get(ops.statsfile),
+            compileCache.statsLines(false),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND);
+      }
     } finally {
       removeTmp(tmpPath);
     }
   }
 
+  /**
+   * Type checks the sources and writes a jar holding only their Scala signatures, which is enough
+   * for downstream targets to compile against while the full compile of this target still runs.
+   */
+  private void writeSignatureJar(CompileOptions ops) throws Exception {
+    Map<String, byte[]> pickles = new HashMap<>();
+    compileScalaSources(
+        ops,
+        ops.classpath,
+        ops.files,
+        readSourceJars(ops.sourceJars),
+        null,
+        new VirtualDirectory("(memory)", Option.empty()),
+        new ArrayList<>(),
+        pickles);
+
+    JarCreator jarCreator = new JarCreator(Paths.get(ops.signatureOutput));
+    for (Entry<String, byte[]> e : pickles.entrySet()) {
+      jarCreator.addEntry(
+          e.getKey() + ".class", SignatureClassFile.create(e.getKey(), e.getValue()));
+    }
+    jarCreator.setNormalize(true);
+    jarCreator.setCompression(true);
+    jarCreator.execute();
+  }
+
   private static String[] collectSrcJarSources(
       String[] files, List<File> scalaJarFiles, List<File> javaJarFiles) {
     String[] scalaSources = GenericWorker.appendToString(files, scalaJarFiles);
     return GenericWorker.appendToString(scalaSources, javaJarFiles);
   }
 
-  private static List<File> filterFilesByExtension(List<File> files, String extension) {
-    List<File> filtered = new ArrayList<File>();
-    for (File f : files) {
+  private static <T> List<T> filterFilesByExtension(List<T> files, String extension) {
+    List<T> filtered = new ArrayList<T>();
+    for (T f : files) {
       if (f.toString().endsWith(extension)) {
         filtered.add(f);
       }
@@ -104,47 +288,74 @@ class ScalacProcessor implements Processor {
 
   private static List<File> extractSourceJars(CompileOptions opts, Path tmpParent)
       throws IOException {
-    List<File> sourceFiles = new ArrayList<File>();
-
+    List<String> jars = new ArrayList<String>();
     for (String jarPath : opts.sourceJars) {
       if (jarPath.length() > 0) {
-        Path tmpPath = Files.createTempDirectory(tmpParent, "tmp");
-        sourceFiles.addAll(extractJar(jarPath, tmpPath.toString(), sourceExtensions));
+        jars.add(jarPath);
       }
     }
+    if (jars.isEmpty()) {
+      return new ArrayList<File>();
+    }
 
-    return sourceFiles;
+    Path tmpPath = Files.createTempDirectory(tmpParent, "tmp");
+    return SourceJarExtractor.extract(jars, tmpPath, sourceExtensions);
   }
 
-  private static List<File> extractJar(String jarPath, String outputFolder, String[] extensions)
-      throws IOException, FileNotFoundException {
-
-    List<File> outputPaths = new ArrayList<File>();
-    JarFile jar = new JarFile(jarPath);
-    Enumeration<JarEntry> e = jar.entries();
-    while (e.hasMoreElements()) {
-      JarEntry file = e.nextElement();
-      String thisFileName = file.getName();
-      // we don't bother to extract non-scala/java sources (skip manifest)
-      if (extensions != null && !matchesFileExtensions(thisFileName, extensions)) continue;
-      File f = new File(outputFolder + File.separator + file.getName());
-
-      if (file.isDirectory()) { // if its a directory, create it
-        f.mkdirs();
-        continue;
-      }
+  static List<File> extractJar(String jarPath, String outputFolder, String[] extensions)
+      throws IOException {
+    return SourceJarExtractor.extract(
+        Collections.singletonList(jarPath), Paths.get(outputFolder), extensions);
+  }
 
-      File parent = f.getParentFile();
-      parent.mkdirs();
-      outputPaths.add(f);
+  /**
+   * Reads the scala and java sources of the given source jars into memory. The returned files are
+   * named after their jar entry, so positions in compiler messages point into the source jar.
+   */
+  private static List<AbstractFile> readSourceJars(String[] sourceJars) throws IOException {
+    List<AbstractFile> sources = new ArrayList<AbstractFile>();
+    for (String jarPath : sourceJars) {
+      if (jarPath.length() == 0) continue;
+      try (JarFile jar = new JarFile(jarPath)) {
+        Enumeration<JarEntry> e = jar.entries();
+        while (e.hasMoreElements()) {
+          JarEntry entry = e.nextElement();
+          String name = entry.getName();
+          if (entry.isDirectory() || !matchesFileExtensions(name, sourceExtensions)) continue;
+
+          VirtualFile source =
+              new VirtualFile(name.substring(name.lastIndexOf('/') + 1), jarPath + "!/" + name);
+          try (InputStream is = jar.getInputStream(entry);
+              OutputStream os = source.output()) {
+            IOUtils.copy(is, os);
+          }
+          sources.add(source);
+        }
+      }
+    }
+    return sources;
+  }
 
-      InputStream is = jar.getInputStream(file); // get the input stream
-      OutputStream fos = new FileOutputStream(f);
-      IOUtils.copy(is, fos);
-      fos.close();
-      is.close();
+  /**
+   * Adds the contents of an in-memory output directory to the jar, including entries for the
+   * directories themselves as {@link JarCreator#addDirectory} does for directories on disk.
+   */
+  private static void addVirtualDirectory(JarCreator jarCreator, AbstractFile dir, String prefix) {
+    scala.collection.Iterator<AbstractFile> files = dir.iterator();
+    while (files.hasNext()) {
+      AbstractFile file = files.next();
+      String name = prefix + file.name();
+      if (file.isDirectory()) {
+        jarCreator.addEntry(name + "/", new byte[0]);
+        addVirtualDirectory(jarCreator, file, name + "/");
+      } else {
+        try {
+          jarCreator.addEntry(name, file.toByteArray());
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
     }
-    return outputPaths;
   }
 
   private static boolean matchesFileExtensions(String fileName, String[] extensions) {
@@ -156,10 +367,6 @@ class ScalacProcessor implements Processor {
     return false;
   }
 
-  private static String[] encodeBazelTargets(String[] targets) {
-    return Arrays.stream(targets).map(ScalacProcessor::encodeBazelTarget).toArray(String[]::new);
-  }
-
   private static String encodeBazelTarget(String target) {
     return target.replace(":", ";");
   }
@@ -172,26 +379,21 @@ class ScalacProcessor implements Processor {
     ArrayList<String> pluginParams = new ArrayList<>(0);
 
     if (isModeEnabled(ops.dependencyAnalyzerMode)) {
-      String[] indirectTargets = encodeBazelTargets(ops.indirectTargets);
       String currentTarget = encodeBazelTarget(ops.currentTarget);
 
       String[] dependencyAnalyzerParams = {
-        "-P:dependency-analyzer:direct-jars:" + String.join(":", ops.directJars),
-        "-P:dependency-analyzer:indirect-jars:" + String.join(":", ops.indirectJars),
-        "-P:dependency-analyzer:indirect-targets:" + String.join(":", indirectTargets),
+        "-P:dependency-analyzer:dependency-map:" + ops.dependencyMap,
         "-P:dependency-analyzer:mode:" + ops.dependencyAnalyzerMode,
         "-P:dependency-analyzer:current-target:" + currentTarget,
       };
       pluginParams.addAll(Arrays.asList(dependencyAnalyzerParams));
     } else if (isModeEnabled(ops.unusedDependencyCheckerMode)) {
-      String[] directTargets = encodeBazelTargets(ops.directTargets);
-      String[] ignoredTargets = encodeBazelTargets(ops.ignoredTargets);
       String currentTarget = encodeBazelTarget(ops.currentTarget);
 
       String[] unusedDependencyCheckerParams = {
-        "-P:unused-dependency-checker:direct-jars:" + String.join(":", ops.directJars),
-        "-P:unused-dependency-checker:direct-targets:" + String.join(":", directTargets),
-        "-P:unused-dependency-checker:ignored-targets:" + String.join(":", ignoredTargets),
+        "-P:unused-dependency-checker:dependency-map:" + ops.dependencyMap,
+        "-P:unused-dependency-checker:ignored-targets:"
+            + ops.getColonList("IgnoredTargets", true),
         "-P:unused-dependency-checker:mode:" + ops.dependencyAnalyzerMode,
         "-P:unused-dependency-checker:current-target:" + currentTarget,
       };
@@ -201,20 +403,68 @@ class ScalacProcessor implements Processor {
     return pluginParams.toArray(new String[pluginParams.size()]);
   }
 
-  private static void compileScalaSources(CompileOptions ops, String[] scalaSources, Path tmpPath)
+  /**
+   * Compiles the given sources into {@code tmpPath}, or {@code classOutput} when set. Returns the
+   * time taken in milliseconds, adding any further statistics to {@code stats}. When {@code
+   * pickles} is given the compile stops after the pickler phase, and the pickles of the top level
+   * classes and objects are added to it.
+   */
+  private long compileScalaSources(
+      CompileOptions ops,
+      String classpath,
+      String[] scalaSources,
+      List<AbstractFile> srcJarSources,
+      Path tmpPath,
+      AbstractFile classOutput,
+      List<String> stats,
+      Map<String, byte[]> pickles)
       throws IllegalAccessException {
 
     String[] pluginParams = getPluginParamsFrom(ops);
 
-    String[] constParams = {"-classpath", ops.classpath, "-d", tmpPath.toString()};
+    String[] classpathParams = {"-classpath", classpath};
+    String[] stopParams = pickles != null ? new String[] {"-Ystop-after:pickler"} : new String[0];
 
-    String[] compilerArgs =
-        GenericWorker.merge(ops.scalaOpts, ops.pluginArgs, constParams, pluginParams, scalaSources);
+    String[] settingsArgs =
+        GenericWorker.merge(
+            ops.scalaOpts, ops.pluginArgs, classpathParams, pluginParams, stopParams);
 
-    MainClass comp = new MainClass();
+    ConsoleReporter reporter;
     long start = System.currentTimeMillis();
     try {
-      comp.process(compilerArgs);
+      if (residentCompilers != null
+          || inMemorySources
+          || classOutput != null
+          || pickles != null) {
+        reporter =
+            compileWithGlobal(
+                settingsArgs,
+                classpath,
+                scalaSources,
+                srcJarSources,
+                tmpPath,
+                classOutput,
+                stats,
+                pickles);
+      } else {
+        String[] outputParams = {"-d", tmpPath.toString()};
+        String[] compilerArgs = GenericWorker.merge(settingsArgs, outputParams, scalaSources);
+        List<PhaseTimingGlobal> globals = new ArrayList<>(1);
+        MainClass comp =
+            new MainClass() {
+              @Override
+              public Global newCompiler() {
+                PhaseTimingGlobal global = new PhaseTimingGlobal(settings(), reporter());
+                globals.add(global);
+                return global;
+              }
+            };
+        comp.process(compilerArgs);
+        reporter = (ConsoleReporter) reporterField.get(comp);
+        for (PhaseTimingGlobal global : globals) {
+          stats.addAll(global.takePhaseTimes());
+        }
+      }
     } catch (Throwable ex) {
       if (ex.toString().contains("scala.reflect.internal.Types$TypeError")) {
         throw new RuntimeException("Build failure with type error", ex);
@@ -227,20 +477,168 @@ class ScalacProcessor implements Processor {
       System.err.println("Compiler runtime: " + (stop - start) + "ms.");
     }
 
+    if (reporter.hasErrors()) {
+      reporter.printSummary();
+      reporter.flush();
+      throw new RuntimeException("Build failed");
+    }
+    return stop - start;
+  }
+
+  private static long totalSize(String[] paths) throws IOException {
+    long size = 0;
+    for (String path : paths) {
+      size += Files.size(Paths.get(path));
+    }
+    return size;
+  }
+
+  private static void writeStatsfile(CompileOptions ops, long buildTime, List<String> stats) {
     try {
-      Files.write(
-          Paths.get(ops.statsfile), Arrays.asList("build_time=" + Long.toString(stop - start)));
+      List<String> statsLines = new ArrayList<>();
+      statsLines.add("build_time=" + Long.toString(buildTime));
+      statsLines.addAll(stats);
+      Files.write(Paths.get(ops.statsfile), statsLines);
     } catch (IOException ex) {
       throw new RuntimeException("Unable to write statsfile to " + ops.statsfile, ex);
     }
+  }
 
-    ConsoleReporter reporter = (ConsoleReporter) reporterField.get(comp);
+  /**
+   * Compiles by driving a Global directly. With the resident compiler enabled the Global is taken
+   * from the cache, creating a new one on a miss, and is only handed back to the cache when the run
+   * finished without errors.
+   */
+  private ConsoleReporter compileWithGlobal(
+      String[] settingsArgs,
+      String classpath,
+      String[] scalaSources,
+      List<AbstractFile> srcJarSources,
+      Path tmpPath,
+      AbstractFile classOutput,
+      List<String> stats,
+      Map<String, byte[]> pickles) {
+    ResidentCompilerCache.Key key = null;
+    PhaseTimingGlobal global = null;
+    if (residentCompilers != null) {
+      key = ResidentCompilerCache.keyFor(settingsArgs, classpath);
+      global = (PhaseTimingGlobal) residentCompilers.acquire(key);
+      stats.add("resident_compiler=" + (global == null ? "miss" : "hit"));
+    }
 
-    if (reporter.hasErrors()) {
-      reporter.printSummary();
-      reporter.flush();
-      throw new RuntimeException("Build failed");
+    Settings settings;
+    if (global == null) {
+      settings = new Settings();
+      CompilerCommand command = new CompilerCommand(toScalaList(settingsArgs), settings);
+      if (!command.ok()) {
+        throw new RuntimeException("Invalid scalac options: " + String.join(" ", settingsArgs));
+      }
+    } else {
+      settings = global.settings();
+    }
+    if (classOutput == null) {
+      settings.outputDirs().setSingleOutput(tmpPath.toString());
+    } else {
+      settings.outputDirs().setSingleOutput(classOutput);
+    }
+
+    // A fresh reporter per request, since the console streams are swapped for every request
+    ConsoleReporter reporter = new ConsoleReporter(settings);
+    if (global == null) {
+      global = new PhaseTimingGlobal(settings, reporter);
+    } else {
+      global.reporter_$eq(reporter);
+    }
+
+    boolean reusable = false;
+    try {
+      Global.Run run = global.new Run();
+      if (srcJarSources.isEmpty()) {
+        run.compile(toScalaList(scalaSources));
+      } else {
+        List<SourceFile> sources = new ArrayList<SourceFile>();
+        for (String path : scalaSources) {
+          sources.add(global.getSourceFile(path));
+        }
+        for (AbstractFile file : srcJarSources) {
+          sources.add(global.getSourceFile(file));
+        }
+        run.compileSources(toScalaList(sources));
+      }
+      stats.addAll(global.takePhaseTimes());
+      if (pickles != null) {
+        collectPickles(run, pickles);
+      }
+      if (residentCompilers != null && !reporter.hasErrors()) {
+        reusable = forgetSourceSymbols(global, run);
+      }
+    } finally {
+      if (residentCompilers != null) {
+        if (reusable) {
+          residentCompilers.release(key, global);
+        }
+        stats.add("resident_compiler_hits=" + residentCompilers.hits());
+        stats.add("resident_compiler_misses=" + residentCompilers.misses());
+      }
+    }
+    return reporter;
+  }
+
+  /** Adds the pickles written by {@code run} to {@code pickles}, by internal class name. */
+  private static void collectPickles(Global.Run run, Map<String, byte[]> pickles) {
+    scala.collection.Iterator<Tuple2<Symbols.Symbol, PickleBuffer>> entries =
+        run.symData().iterator();
+    while (entries.hasNext()) {
+      Tuple2<Symbols.Symbol, PickleBuffer> entry = entries.next();
+      Symbols.Symbol sym = entry._1();
+      String name = sym.fullName('/');
+      // A class and its companion share a class file, which takes the pickle of the class
+      if (sym.isModule() && pickles.containsKey(name)) {
+        continue;
+      }
+      PickleBuffer pickle = entry._2();
+      pickles.put(name, Arrays.copyOf(pickle.bytes(), pickle.writeIndex()));
+    }
+  }
+
+  /**
+   * Unlinks the top level symbols entered from sources during {@code run}, so that a later run on
+   * the same Global does not resolve classes from sources it is not compiling. Packages that only
+   * the sources created are unlinked as a whole. Returns false if a source redefined a class of
+   * the classpath, whose symbol was taken over by the source and can't be restored, in which case
+   * the Global must not be reused.
+   */
+  private static boolean forgetSourceSymbols(Global global, Global.Run run) {
+    scala.collection.Iterator<Symbols.Symbol> syms = run.symSource().keysIterator();
+    while (syms.hasNext()) {
+      Symbols.Symbol sym = syms.next();
+      String name = sym.fullName();
+      if (global.classPath().findClassFile(name).isDefined()
+          || (sym.isModule() && global.classPath().findClassFile(name + "$").isDefined())) {
+        return false;
+      }
+      // Packages loaded from the classpath have no position, those entered by the namer do
+      Symbols.Symbol created = null;
+      for (Symbols.Symbol pkg = sym.owner();
+          pkg.isPackageClass() && !pkg.isRoot() && pkg.pos().isDefined();
+          pkg = pkg.owner()) {
+        created = pkg;
+      }
+      if (created == null) {
+        sym.owner().info().decls().unlink(sym);
+      } else {
+        created.owner().info().decls().unlink(created.sourceModule());
+      }
     }
+    return true;
+  }
+
+  private static scala.collection.immutable.List<String> toScalaList(String[] args) {
+    return toScalaList(Arrays.asList(args));
+  }
+
+  private static <T> scala.collection.immutable.List<T> toScalaList(List<T> list) {
+    return JavaConverters.asScalaBufferConverter(list).asScala().toList();
   }
 
   private static void removeTmp(Path tmp) throws IOException {
@@ -339,10 +737,4 @@ class ScalacProcessor implements Processor {
     String newResPath = sourcePath.substring(resourceStripPrefix.length());
     return newResPath;
   }
-
-  private static void copyResourceJars(String[] resourceJars, Path dest) throws IOException {
-    for (String jarPath : resourceJars) {
-      extractJar(jarPath, dest.toString(), null);
-    }
-  }
 }
@@ -0,0 +1,125 @@
+package io.bazel.rulesscala.scalac;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import scala.reflect.internal.pickling.ByteCodecs;
+
+/**
+ * Writes class files that hold nothing but the pickled Scala signature of a top level class or
+ * object. Scalac reads the API of Scala classes from their signature only, so such class files
+ * suffice to compile against, though not to run or to compile Java against.
+ *
+ * <p>The signature is stored the way scalac's backend stores it: a {@code ScalaSig} marker
+ * attribute and a {@code ScalaSignature} annotation holding the encoded pickle, or a {@code
+ * ScalaLongSignature} annotation splitting it into several constants when it is too long for one.
+ */
+final class SignatureClassFile {
+  private static final int MAX_CONSTANT_LENGTH = 65535;
+
+  // Version 5.0 of the pickle format, followed by a zero length
+  private static final byte[] SCALA_SIG_MARKER = {5, 0, 0};
+
+  private SignatureClassFile() {}
+
+  /**
+   * Returns the class file for the pickle of a top level class or object.
+   *
+   * @param internalName the name of the class, as in {@code com/example/Foo}
+   * @param pickle the bytes of the pickle, as written by the pickler phase
+   */
+  static byte[] create(String internalName, byte[] pickle) {
+    List<byte[]> chunks = split(ByteCodecs.encode(pickle));
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(pickle.length + 256);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor version
+      out.writeShort(50); // major version, Java 6 like scalac's default target
+
+      out.writeShort(9 + chunks.size());
+      writeUtf8(out, internalName.getBytes(UTF_8)); // #1
+      out.writeByte(7); // #2 Class #1
+      out.writeShort(1);
+      writeUtf8(out, "java/lang/Object".getBytes(UTF_8)); // #3
+      out.writeByte(7); // #4 Class #3
+      out.writeShort(3);
+      writeUtf8(out, "ScalaSig".getBytes(UTF_8)); // #5
+      writeUtf8(out, "RuntimeVisibleAnnotations".getBytes(UTF_8)); // #6
+      String annotation =
+          chunks.size() == 1
+              ? "Lscala/reflect/ScalaSignature;"
+              : "Lscala/reflect/ScalaLongSignature;";
+      writeUtf8(out, annotation.getBytes(UTF_8)); // #7
+      writeUtf8(out, "bytes".getBytes(UTF_8)); // #8
+      for (byte[] chunk : chunks) {
+        writeUtf8(out, chunk); // #9 onwards
+      }
+
+      out.writeShort(0x0021); // ACC_PUBLIC | ACC_SUPER
+      out.writeShort(2); // this class
+      out.writeShort(4); // super class
+      out.writeShort(0); // interfaces
+      out.writeShort(0); // fields
+      out.writeShort(0); // methods
+
+      out.writeShort(2); // attributes
+      out.writeShort(5);
+      out.writeInt(SCALA_SIG_MARKER.length);
+      out.write(SCALA_SIG_MARKER);
+
+      out.writeShort(6);
+      int valueLength = chunks.size() == 1 ? 3 : 3 + 3 * chunks.size();
+      out.writeInt(2 + 2 + 2 + 2 + valueLength);
+      out.writeShort(1); // annotations
+      out.writeShort(7); // type
+      out.writeShort(1); // element value pairs
+      out.writeShort(8); // "bytes"
+      if (chunks.size() == 1) {
+        out.writeByte('s');
+        out.writeShort(9);
+      } else {
+        out.writeByte('[');
+        out.writeShort(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+          out.writeByte('s');
+          out.writeShort(9 + i);
+        }
+      }
+      out.flush();
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Splits the encoded pickle into constants that fit in the constant pool, without splitting the
+   * two byte encoding of a zero.
+   */
+  private static List<byte[]> split(byte[] encoded) {
+    List<byte[]> chunks = new ArrayList<>();
+    int start = 0;
+    do {
+      int end = Math.min(encoded.length, start + MAX_CONSTANT_LENGTH);
+      if (end < encoded.length && encoded[end - 1] == (byte) 0xC0) {
+        end--;
+      }
+      chunks.add(Arrays.copyOfRange(encoded, start, end));
+      start = end;
+    } while (start < encoded.length);
+    return chunks;
+  }
+
+  private static void writeUtf8(DataOutputStream out, byte[] utf8) throws IOException {
+    out.writeByte(1);
+    out.writeShort(utf8.length);
+    out.write(utf8);
+  }
+}
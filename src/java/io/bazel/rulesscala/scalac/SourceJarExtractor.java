@@ -0,0 +1,242 @@
+package io.bazel.rulesscala.scalac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts the sources of several source jars into one directory. Which entries go where is decided
+ * up front, so that directories are created once and conflicting entries are reported before
+ * anything is written; the entries are then written in batches on a pool shared by all requests.
+ *
+ * <p>An entry that occurs in more than one jar, or more than once in a jar, is extracted once if
+ * all copies are the same and is an error otherwise.
+ */
+final class SourceJarExtractor {
+  static final String THREADS_PROPERTY = "io.bazel.rulesscala.scalac.extraction_threads";
+
+  // Batches are kept small enough to spread a single large jar over all threads
+  private static final int MAX_BATCH_ENTRIES = 64;
+  private static final long MAX_BATCH_SIZE = 1 << 20;
+
+  private static final ExecutorService executor =
+      Executors.newFixedThreadPool(
+          Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+          runnable -> {
+            Thread t = new Thread(runnable, "srcjar-extraction");
+            t.setDaemon(true);
+            return t;
+          });
+
+  private SourceJarExtractor() {}
+
+  /**
+   * Extracts the entries of {@code jars} that end in one of {@code extensions} to {@code
+   * outputDir}, returning the extracted files in the order of the jars and their entries.
+   */
+  static List<File> extract(List<String> jars, Path outputDir, String[] extensions)
+      throws IOException {
+    List<ZipFile> zips = new ArrayList<>();
+    try {
+      Map<String, Extraction> extractions = new HashMap<>();
+      List<Extraction> planned = new ArrayList<>();
+      Set<Path> dirs = new LinkedHashSet<>();
+      for (String jar : jars) {
+        ZipFile zip = new ZipFile(jar);
+        zips.add(zip);
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          if (entry.isDirectory() || !matchesExtension(entry.getName(), extensions)) {
+            continue;
+          }
+          Extraction previous = extractions.get(entry.getName());
+          if (previous != null) {
+            if (previous.entry.getCrc() != entry.getCrc()
+                || previous.entry.getSize() != entry.getSize()) {
+              throw new RuntimeException(
+                  "Conflicting source "
+                      + entry.getName()
+                      + " in "
+                      + previous.jar
+                      + " and "
+                      + jar);
+            }
+            continue;
+          }
+          Path target = outputDir.resolve(entry.getName()).normalize();
+          if (!target.startsWith(outputDir)) {
+            throw new RuntimeException(
+                "Source " + entry.getName() + " in " + jar + " is outside of the jar root");
+          }
+          Extraction extraction = new Extraction(jar, zip, entry, target);
+          extractions.put(entry.getName(), extraction);
+          planned.add(extraction);
+          dirs.add(target.getParent());
+        }
+      }
+
+      for (Path dir : dirs) {
+        Files.createDirectories(dir);
+      }
+      write(batches(planned));
+
+      List<File> files = new ArrayList<>(planned.size());
+      for (Extraction extraction : planned) {
+        files.add(extraction.target.toFile());
+      }
+      return files;
+    } finally {
+      for (ZipFile zip : zips) {
+        zip.close();
+      }
+    }
+  }
+
+  private static List<List<Extraction>> batches(List<Extraction> extractions) {
+    List<List<Extraction>> batches = new ArrayList<>();
+    List<Extraction> batch = new ArrayList<>();
+    long batchSize = 0;
+    for (Extraction extraction : extractions) {
+      batch.add(extraction);
+      batchSize += Math.max(0, extraction.entry.getSize());
+      if (batch.size() >= MAX_BATCH_ENTRIES || batchSize >= MAX_BATCH_SIZE) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchSize = 0;
+      }
+    }
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+    return batches;
+  }
+
+  /**
+   * Writes the batches, failing on the first batch that fails. The batches still to run are then
+   * skipped, and those running stop after their current entry. All of them are waited for, since
+   * the jars are closed once this returns.
+   */
+  private static void write(List<List<Extraction>> batches) throws IOException {
+    if (batches.size() == 1) {
+      try {
+        for (Extraction extraction : batches.get(0)) {
+          extraction.run();
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return;
+    }
+
+    AtomicBoolean failed = new AtomicBoolean();
+    List<Future<?>> futures = new ArrayList<>(batches.size());
+    for (List<Extraction> batch : batches) {
+      futures.add(
+          executor.submit(
+              () -> {
+                for (Extraction extraction : batch) {
+                  if (failed.get()) {
+                    return;
+                  }
+                  try {
+                    extraction.run();
+                  } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                  }
+                }
+              }));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      failed.set(true);
+      awaitAll(futures);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while extracting source jars", e);
+    } catch (ExecutionException e) {
+      failed.set(true);
+      awaitAll(futures);
+      Throwable cause = e.getCause();
+      if (cause instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) cause).getCause();
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
+
+  // Waits for the batches to finish, whether or not this thread is interrupted. Their failures are
+  // dropped, as the first one is reported.
+  private static void awaitAll(List<Future<?>> futures) {
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static boolean matchesExtension(String name, String[] extensions) {
+    for (String extension : extensions) {
+      if (name.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static final class Extraction {
+    final String jar;
+    final ZipFile zip;
+    final ZipEntry entry;
+    final Path target;
+
+    Extraction(String jar, ZipFile zip, ZipEntry entry, Path target) {
+      this.jar = jar;
+      this.zip = zip;
+      this.entry = entry;
+      this.target = target;
+    }
+
+    void run() {
+      try (InputStream in = zip.getInputStream(entry)) {
+        Files.copy(in, target);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Unable to extract " + entry.getName() + " from " + jar, e);
+      }
+    }
+  }
+}
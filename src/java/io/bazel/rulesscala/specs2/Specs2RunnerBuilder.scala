@@ -5,6 +5,7 @@ import java.util.regex.Pattern
 
 import io.bazel.rulesscala.test_discovery._
 import io.bazel.rulesscala.test_discovery.FilteredRunnerBuilder.FilteringRunnerBuilder
+import org.junit.runner.manipulation.Filter
 import org.junit.runner.notification.RunNotifier
 import org.junit.runner.{Description, RunWith, Runner}
 import org.junit.runners.Suite
@@ -34,6 +35,10 @@ class Specs2PrefixSuffixTestDiscoveringSuite(suite: Class[Any], runnerBuilder: R
 
   override def getName: String = "Aggregate Specs2 Test Suite"
 
+  // Specifications are sharded by class when discovered
+  override def filter(filter: Filter): Unit =
+    if (!TestSharding.isRunnerShardingFilter(filter)) super.filter(filter)
+
   override def getDescription: Description = {
     lazy val emptySuiteDescription = {
       val description = Description.createSuiteDescription(getName)
@@ -0,0 +1,123 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, DataInputStream, InputStream}
+
+/**
+ * The parts of a class file that test discovery looks at, read without loading the class.
+ *
+ * @param superName the internal name of the superclass, absent for java.lang.Object
+ * @param annotations the descriptors of the runtime visible annotations on the class
+ * @param methodAnnotations the descriptors of the runtime visible annotations on its methods, by
+ *                          method name
+ */
+private[test_discovery] case class ClassFileSummary(isAbstract: Boolean,
+                                                    superName: Option[String],
+                                                    annotations: Set[String],
+                                                    methodAnnotations: Map[String, Set[String]])
+
+private[test_discovery] object ClassFileSummary {
+
+  private val AccAbstract = 0x0400
+
+  def read(stream: InputStream): ClassFileSummary = {
+    // Read up front, as skipBytes on a stream may skip less than asked for
+    val bytes = new ByteArrayOutputStream()
+    val buffer = new Array[Byte](8192)
+    var n = stream.read(buffer)
+    while (n != -1) {
+      bytes.write(buffer, 0, n)
+      n = stream.read(buffer)
+    }
+    val in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray))
+    if (in.readInt() != 0xCAFEBABE)
+      throw new IllegalArgumentException("Not a class file")
+    in.readUnsignedShort() // minor version
+    in.readUnsignedShort() // major version
+
+    val constantCount = in.readUnsignedShort()
+    val utf8 = new Array[String](constantCount)
+    val classNames = new Array[Int](constantCount)
+    var i = 1
+    while (i < constantCount) {
+      in.readUnsignedByte() match {
+        case 1 => utf8(i) = in.readUTF()
+        case 7 => classNames(i) = in.readUnsignedShort()
+        case 8 | 16 | 19 | 20 => in.skipBytes(2)
+        case 15 => in.skipBytes(3)
+        case 3 | 4 | 9 | 10 | 11 | 12 | 17 | 18 => in.skipBytes(4)
+        case 5 | 6 =>
+          in.skipBytes(8)
+          i += 1 // longs and doubles take up two entries
+        case tag => throw new IllegalArgumentException(s"Unknown constant pool tag $tag")
+      }
+      i += 1
+    }
+
+    val access = in.readUnsignedShort()
+    in.readUnsignedShort() // this class
+    val superIndex = in.readUnsignedShort()
+    in.skipBytes(2 * in.readUnsignedShort()) // interfaces
+
+    def readAnnotations(): Set[String] = {
+      var annotations = Set.empty[String]
+      val attributeCount = in.readUnsignedShort()
+      for (_ <- 0 until attributeCount) {
+        val name = utf8(in.readUnsignedShort())
+        val length = in.readInt()
+        if (name == "RuntimeVisibleAnnotations") {
+          val annotationCount = in.readUnsignedShort()
+          for (_ <- 0 until annotationCount) {
+            annotations += utf8(in.readUnsignedShort())
+            skipElementValuePairs(in)
+          }
+        } else {
+          in.skipBytes(length)
+        }
+      }
+      annotations
+    }
+
+    val fieldCount = in.readUnsignedShort()
+    for (_ <- 0 until fieldCount) {
+      in.skipBytes(6) // access, name and descriptor
+      readAnnotations()
+    }
+    var methodAnnotations = Map.empty[String, Set[String]]
+    val methodCount = in.readUnsignedShort()
+    for (_ <- 0 until methodCount) {
+      in.skipBytes(2)
+      val name = utf8(in.readUnsignedShort())
+      in.skipBytes(2)
+      val annotations = readAnnotations()
+      if (annotations.nonEmpty) {
+        methodAnnotations += name -> (methodAnnotations.getOrElse(name, Set.empty) ++ annotations)
+      }
+    }
+
+    ClassFileSummary(
+      isAbstract = (access & AccAbstract) != 0,
+      superName = if (superIndex == 0) None else Some(utf8(classNames(superIndex))),
+      annotations = readAnnotations(),
+      methodAnnotations = methodAnnotations)
+  }
+
+  private def skipElementValuePairs(in: DataInputStream): Unit = {
+    val pairCount = in.readUnsignedShort()
+    for (_ <- 0 until pairCount) {
+      in.skipBytes(2) // element name
+      skipElementValue(in)
+    }
+  }
+
+  private def skipElementValue(in: DataInputStream): Unit =
+    in.readUnsignedByte().toChar match {
+      case 'e' => in.skipBytes(4)
+      case '@' =>
+        in.skipBytes(2)
+        skipElementValuePairs(in)
+      case '[' =>
+        val valueCount = in.readUnsignedShort()
+        for (_ <- 0 until valueCount) skipElementValue(in)
+      case _ => in.skipBytes(2) // constants and classes
+    }
+}
@@ -1,15 +1,11 @@
 package io.bazel.rulesscala.test_discovery
 
-import java.io.File
-import java.io.FileInputStream
-import java.lang.annotation.Annotation
-import java.lang.reflect.Modifier
-import java.util.jar.JarInputStream
-import org.junit.Test
+import java.nio.file.{Files, Paths}
 import org.junit.runner.RunWith
+import org.junit.runner.manipulation.Filter
 import org.junit.runners.Suite
 import org.junit.runners.model.RunnerBuilder
-import scala.annotation.tailrec
+import scala.collection.JavaConverters._
 
 /**
  * The test running and discovery mechanism works in the following manner:
@@ -23,7 +19,15 @@ import scala.annotation.tailrec
  *   - Of those we filter again and keep only those which match either of the prefixes/suffixes supplied.
  *   - Prefixes are supplied as a comma separated list. System property ("bazel.discover.classes.prefixes")
  *   - Suffixes are supplied as a comma separated list. System property ("bazel.discover.classes.prefixes")
- *   - We iterate over the remaining entries and format them into classes.
+ *   - We keep the remaining entries whose class files show a concrete class that is annotated with
+ *     `@RunWith` or has `@Test` methods, including through its superclasses.
+ *     This is read from the bytecode, so no class is loaded or initialized for it.
+ *   - The archives are scanned in parallel and the test classes are loaded without initializing them.
+ *   - The scan is done when the target is built, writing a `TestDiscoveryIndex` whose path is passed in
+ *     "bazel.discover.classes.index.file.path". The archives are only scanned at runtime without one.
+ *   - When the target has a `shard_count`, each shard runs its share of the test methods, see `TestSharding`.
+ *   - Test classes, and their methods, run in parallel when the `parallel_test_classes` and
+ *     `parallel_test_methods` attributes are set, see `ParallelRunnerScheduler`.
  *   - At this point we tell JUnit (via the `RunnerBuilder`) what are the discovered test classes.
  *   - W.R.T. discovery semantics this is similar to how maven surefire/failsafe plugins work.
  *   - For debugging purposes one can ask to print the list of discovered classes.
@@ -38,90 +42,60 @@ import scala.annotation.tailrec
 @RunWith(classOf[PrefixSuffixTestDiscoveringSuite])
 class DiscoveredTestSuite
 
-class PrefixSuffixTestDiscoveringSuite(testClass: Class[Any], builder: RunnerBuilder)
-  extends Suite(new FilteredRunnerBuilder(builder, JUnitFilteringRunnerBuilder.f), PrefixSuffixTestDiscoveringSuite.discoverClasses())
+class PrefixSuffixTestDiscoveringSuite(testClass: Class[Any], builder: RunnerBuilder, shard: (Array[Class[_]], Option[Filter]))
+  extends Suite(new FilteredRunnerBuilder(builder, JUnitFilteringRunnerBuilder.f), shard._1) {
+
+  def this(testClass: Class[Any], builder: RunnerBuilder) =
+    this(testClass, builder, PrefixSuffixTestDiscoveringSuite.discoverShard(byMethod = true))
+
+  for (shardFilter <- shard._2 if shard._1.nonEmpty) super.filter(shardFilter)
+
+  ParallelRunnerScheduler.configure(this, getChildren.asScala)
+
+  override def filter(filter: Filter): Unit =
+    if (!TestSharding.isRunnerShardingFilter(filter)) super.filter(filter)
+}
 
 object PrefixSuffixTestDiscoveringSuite {
 
-  private[rulesscala] def discoverClasses(): Array[Class[_]] = {
+  /** Returns the test classes of this shard, or all of them when the tests are not sharded. */
+  private[rulesscala] def discoverClasses(): Array[Class[_]] =
+    discoverShard(byMethod = false)._1
+
+  /**
+   * Returns the test classes of this shard, and when sharded a filter for the tests in them that
+   * belong to it. Tests are sharded by method when `byMethod` is set, and by class otherwise.
+   */
+  private[rulesscala] def discoverShard(byMethod: Boolean): (Array[Class[_]], Option[Filter]) = {
 
     val archives = archivesPath.split(',')
-    val classes = archives.flatMap(discoverClassesIn)
-    if (classes.isEmpty)
+    val testClasses = Option(indexPath).map(Paths.get(_)).filter(Files.isRegularFile(_)) match {
+      case Some(index) => TestDiscoveryIndex.read(index)
+      case None => new TestClassScanner(prefixes, suffixes, classLoader).scan(archives)
+    }
+    if (printDiscoveredClasses) {
+      println("Discovered classes:")
+      testClasses.foreach(c => println(c.name))
+    }
+    if (testClasses.isEmpty)
       throw new IllegalStateException("Was not able to discover any classes " +
                                       s"for archive=$archives, " +
                                       s"prefixes=$prefixes, " +
                                       s"suffixes=$suffixes")
-    classes
-  }
-
-  private def discoverClassesIn(archivePath: String): Array[Class[_]] = {
-    val archive = archiveInputStream(archivePath)
-    val classes = discoverClasses(archive, prefixes, suffixesWithClassSuffix)
-    archive.close()
-    if (printDiscoveredClasses) {
-      println("Discovered classes:")
-      classes.foreach(c => println(c.getName))
+    val (shardClasses, filter) = TestSharding.fromEnvironment match {
+      case Some(sharding) =>
+        val (shardClasses, filter) = sharding.shard(testClasses, byMethod)
+        (shardClasses, Some(filter))
+      case None => (testClasses, None)
     }
-    classes
-  }
-
-  private def discoverClasses(archive: JarInputStream,
-                              prefixes: Set[String],
-                              suffixes: Set[String]): Array[Class[_]] =
-    matchingEntries(archive, prefixes, suffixes)
-      .map(dropFileSuffix)
-      .map(fileToClassFormat)
-      .filterNot(innerClasses)
-      .map(Class.forName)
-      .filter(concreteClasses)
-      .filter(containsTests)
-      .toArray
-
-  private def matchingEntries(archive: JarInputStream,
-    prefixes: Set[String],
-    suffixes: Set[String]) =
-        entries(archive)
-          .filter(isClass)
-          .filter(entry => endsWith(suffixes)(entry) || startsWith(prefixes)(entry))
-
-  private def startsWith(prefixes: Set[String])(entry: String): Boolean = {
-    val entryName = entryFileName(entry)
-    prefixes.exists(entryName.startsWith)
+    (shardClasses.map(c => Class.forName(c.name, false, classLoader)).toArray, filter)
   }
 
-  private def endsWith(suffixes: Set[String])(entry: String): Boolean = {
-    val entryName = entryFileName(entry)
-    suffixes.exists(entryName.endsWith)
-  }
-
-  private def entryFileName(entry: String): String =
-    new File(entry).getName
-
-  private def dropFileSuffix(classEntry: String): String =
-    classEntry.split("\\.").head
-
-  private def fileToClassFormat(classEntry: String): String =
-    classEntry.replace('/', '.')
-
-  private def isClass(entry: String): Boolean =
-    entry.endsWith(".class")
-
-  private def entries(jarInputStream: JarInputStream) =
-    Stream.continually(Option(jarInputStream.getNextJarEntry))
-    .takeWhile(_.isDefined)
-    .flatten
-    .map(_.getName)
-    .toList
-
-  private def archiveInputStream(archivePath: String) =
-    new JarInputStream(new FileInputStream(archivePath))
-
   private def archivesPath: String =
     System.getProperty("bazel.discover.classes.archives.file.paths") //this is set by scala_junit_test rule in scala.bzl
 
-  private def suffixesWithClassSuffix: Set[String] =
-    suffixes.map(_ + ".class")
+  private def indexPath: String =
+    System.getProperty("bazel.discover.classes.index.file.path")
 
   private def suffixes: Set[String] =
     parseProperty(System.getProperty("bazel.discover.classes.suffixes"))
@@ -138,33 +112,5 @@ object PrefixSuffixTestDiscoveringSuite {
   private def printDiscoveredClasses: Boolean =
     System.getProperty("bazel.discover.classes.print.discovered").toBoolean
 
-  private def concreteClasses(testClass: Class[_]): Boolean =
-    !Modifier.isAbstract(testClass.getModifiers)
-
-  private def innerClasses(testClassName: String): Boolean =
-    testClassName.contains('$')
-
-  private def containsTests(testClass: Class[_]): Boolean =
-    annotatedWithRunWith(testClass) || hasTestAnnotatedMethodsInClassHierarchy(testClass)
-
-  private def annotatedWithRunWith(testClass: Class[_]) =
-    testClass.getAnnotation(runWithAnnotation) != null
-
-  @tailrec
-  private def hasTestAnnotatedMethodsInClassHierarchy(testClass: Class[_]): Boolean =
-    Option(testClass) match {
-      case None => false
-      case Some(currentTestClass) if hasTestAnnotatedMethodsInCurrentClass(currentTestClass) => true
-      case Some(currentTestClass) => hasTestAnnotatedMethodsInClassHierarchy(currentTestClass.getSuperclass)
-    }
-
-  private def hasTestAnnotatedMethodsInCurrentClass(testClass: Class[_]): Boolean =
-    testClass.getDeclaredMethods.exists { method =>
-      method.getAnnotations.exists { annotation: Annotation =>
-        testAnnotation.isAssignableFrom(annotation.annotationType)
-      }
-    }
-
-  private val runWithAnnotation = classOf[RunWith]
-  private val testAnnotation = classOf[Test]
+  private def classLoader: ClassLoader = getClass.getClassLoader
 }
@@ -0,0 +1,68 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.util.concurrent.{ExecutionException, ExecutorService, Executors, Future, ThreadFactory}
+import org.junit.runner.Runner
+import org.junit.runners.ParentRunner
+import org.junit.runners.model.RunnerScheduler
+import scala.collection.mutable
+
+/**
+ * Runs the children of a runner, the test classes of a suite or the test methods of a class, on
+ * `threads` threads. Their results are reported as they finish, which is safe since JUnit
+ * synchronizes the listeners of a `RunNotifier` that are not thread safe. The reports are still
+ * grouped by class and in discovery order, since they are built from the descriptions.
+ */
+private[test_discovery] class ParallelRunnerScheduler(threads: Int) extends RunnerScheduler {
+
+  private lazy val executor: ExecutorService =
+    Executors.newFixedThreadPool(threads, new ThreadFactory {
+      override def newThread(runnable: Runnable): Thread = {
+        val thread = new Thread(runnable, "test-runner")
+        thread.setDaemon(true)
+        thread
+      }
+    })
+
+  private val scheduled = mutable.ArrayBuffer[Future[_]]()
+
+  override def schedule(childStatement: Runnable): Unit =
+    scheduled += executor.submit(childStatement)
+
+  // Waits for all children, even once one failed, so none still runs once the runner is done
+  override def finished(): Unit =
+    try {
+      var failure: Throwable = null
+      scheduled.foreach { future =>
+        try future.get()
+        catch {
+          case e: ExecutionException =>
+            if (failure == null) failure = e.getCause
+            else failure.addSuppressed(e.getCause)
+        }
+      }
+      if (failure != null) throw failure
+    } finally {
+      if (scheduled.nonEmpty) executor.shutdown()
+    }
+}
+
+private[test_discovery] object ParallelRunnerScheduler {
+
+  /**
+   * Makes `suite` run its test classes in parallel, and the test methods of those as well, as many
+   * at a time as "bazel.discover.classes.parallelism" and "bazel.discover.methods.parallelism" say.
+   */
+  def configure(suite: ParentRunner[Runner], testClassRunners: Seq[Runner]): Unit = {
+    val classThreads = Integer.getInteger("bazel.discover.classes.parallelism", 1)
+    val methodThreads = Integer.getInteger("bazel.discover.methods.parallelism", 1)
+    if (classThreads > 1) {
+      suite.setScheduler(new ParallelRunnerScheduler(classThreads))
+    }
+    if (methodThreads > 1) {
+      testClassRunners.foreach {
+        case runner: ParentRunner[_] => runner.setScheduler(new ParallelRunnerScheduler(methodThreads))
+        case _ =>
+      }
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.io.File
+import java.util.concurrent.ConcurrentHashMap
+import java.util.zip.ZipFile
+import org.junit.Test
+import org.junit.runner.RunWith
+import scala.annotation.tailrec
+import scala.collection.JavaConverters._
+
+/**
+ * Finds the test classes in archives by reading their class files, so that no class is loaded for
+ * it. A class is a test class when it is concrete and it or one of its superclasses is annotated
+ * with `@RunWith` or has `@Test` methods. Superclasses that are not in the scanned archive are read
+ * from `classLoader`.
+ */
+private[test_discovery] class TestClassScanner(prefixes: Set[String],
+                                               suffixes: Set[String],
+                                               classLoader: ClassLoader) {
+
+  // Shared between the archives, so a common base class is only read once
+  private val summaries = new ConcurrentHashMap[String, Option[ClassFileSummary]]()
+
+  private val suffixesWithClassSuffix = suffixes.map(_ + ".class")
+
+  /** Scans the archives in parallel, returning the test classes in the order of the archives. */
+  def scan(archives: Seq[String]): Seq[DiscoveredTestClass] =
+    archives.par.flatMap(scanArchive).seq
+
+  private def scanArchive(archivePath: String): Seq[DiscoveredTestClass] = {
+    val archive = new ZipFile(archivePath)
+    try {
+      matchingEntries(archive)
+        .map(dropFileSuffix)
+        .filterNot(innerClasses)
+        .flatMap(testClass(archive))
+    } finally {
+      archive.close()
+    }
+  }
+
+  private def matchingEntries(archive: ZipFile) =
+    entries(archive)
+      .filter(isClass)
+      .filter(entry => endsWith(suffixesWithClassSuffix)(entry) || startsWith(prefixes)(entry))
+
+  private def startsWith(prefixes: Set[String])(entry: String): Boolean = {
+    val entryName = entryFileName(entry)
+    prefixes.exists(entryName.startsWith)
+  }
+
+  private def endsWith(suffixes: Set[String])(entry: String): Boolean = {
+    val entryName = entryFileName(entry)
+    suffixes.exists(entryName.endsWith)
+  }
+
+  private def entryFileName(entry: String): String =
+    new File(entry).getName
+
+  private def dropFileSuffix(classEntry: String): String =
+    classEntry.split("\\.").head
+
+  private def fileToClassFormat(classEntry: String): String =
+    classEntry.replace('/', '.')
+
+  private def isClass(entry: String): Boolean =
+    entry.endsWith(".class")
+
+  private def entries(archive: ZipFile): List[String] =
+    archive.entries.asScala
+      .map(_.getName)
+      .toList
+
+  private def innerClasses(testClassName: String): Boolean =
+    testClassName.contains('$')
+
+  private def testClass(archive: ZipFile)(internalName: String): Option[DiscoveredTestClass] =
+    summaryOf(archive, internalName).filterNot(_.isAbstract).flatMap { summary =>
+      val hierarchy = classHierarchy(archive, Some(summary), Nil)
+      val testMethods = hierarchy.flatMap(testMethodsOf).distinct
+      if (hierarchy.exists(_.annotations(runWithAnnotation)) || testMethods.nonEmpty)
+        Some(DiscoveredTestClass(fileToClassFormat(internalName), testMethods))
+      else
+        None
+    }
+
+  @tailrec
+  private def classHierarchy(archive: ZipFile,
+                             testClass: Option[ClassFileSummary],
+                             subclasses: List[ClassFileSummary]): List[ClassFileSummary] =
+    testClass match {
+      case None => subclasses.reverse
+      case Some(currentTestClass) =>
+        classHierarchy(
+          archive,
+          currentTestClass.superName.flatMap(summaryOf(archive, _)),
+          currentTestClass :: subclasses)
+    }
+
+  private def testMethodsOf(testClass: ClassFileSummary): Seq[String] =
+    testClass.methodAnnotations.collect {
+      case (method, annotations) if annotations(testAnnotation) => method
+    }.toSeq.sorted
+
+  private def summaryOf(archive: ZipFile, internalName: String): Option[ClassFileSummary] =
+    if (internalName.startsWith("java/")) None
+    else Option(summaries.get(internalName)).getOrElse {
+      val fileName = internalName + ".class"
+      val summary = Option(archive.getEntry(fileName))
+        .map(archive.getInputStream)
+        .orElse(Option(classLoader.getResourceAsStream(fileName)))
+        .map { in =>
+          try ClassFileSummary.read(in) finally in.close()
+        }
+      summaries.put(internalName, summary)
+      summary
+    }
+
+  private val runWithAnnotation = descriptorOf(classOf[RunWith])
+  private val testAnnotation = descriptorOf(classOf[Test])
+
+  private def descriptorOf(annotation: Class[_]): String =
+    "L" + annotation.getName.replace('.', '/') + ";"
+}
@@ -0,0 +1,55 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.io.File
+import java.net.URLClassLoader
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Path, Paths}
+import scala.collection.JavaConverters._
+
+/** A test class found by discovery, with the names of its `@Test` methods. */
+private[rulesscala] case class DiscoveredTestClass(name: String, testMethods: Seq[String])
+
+/**
+ * The test classes of a test target, discovered when the target is built so that its test runs
+ * need not scan the archives again. The index has a line per test class, holding the class name
+ * followed by the names of its test methods, separated by tabs.
+ *
+ * The build action runs `main` with a single argument, a file of `<key>: <value>` lines giving the
+ * `IndexOutput` path, the comma separated `Archives` to scan, the `Prefixes` and `Suffixes` test
+ * classes are matched by, and the `Classpath` their superclasses are read from.
+ */
+object TestDiscoveryIndex {
+
+  def main(args: Array[String]): Unit = {
+    val options = Files.readAllLines(Paths.get(args(0)), UTF_8).asScala
+      .filter(_.contains(": "))
+      .map { line =>
+        val separator = line.indexOf(": ")
+        line.substring(0, separator) -> line.substring(separator + 2)
+      }.toMap
+    def list(key: String): Seq[String] =
+      options.get(key).toSeq.flatMap(_.split(",")).filter(_.nonEmpty)
+
+    val classpath = list("Classpath").map(jar => new File(jar).toURI.toURL)
+    val classLoader = new URLClassLoader(classpath.toArray, null)
+    try {
+      val scanner = new TestClassScanner(list("Prefixes").toSet, list("Suffixes").toSet, classLoader)
+      write(Paths.get(options("IndexOutput")), scanner.scan(list("Archives")))
+    } finally {
+      classLoader.close()
+    }
+  }
+
+  def write(index: Path, testClasses: Seq[DiscoveredTestClass]): Unit = {
+    val lines = testClasses.map(testClass => (testClass.name +: testClass.testMethods).mkString("\t"))
+    Files.write(index, lines.asJava, UTF_8)
+  }
+
+  def read(index: Path): Seq[DiscoveredTestClass] =
+    Files.readAllLines(index, UTF_8).asScala
+      .filter(_.nonEmpty)
+      .map { line =>
+        val fields = line.split('\t')
+        DiscoveredTestClass(fields.head, fields.tail.toSeq)
+      }
+}
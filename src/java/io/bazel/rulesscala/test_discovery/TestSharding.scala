@@ -0,0 +1,128 @@
+package io.bazel.rulesscala.test_discovery
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Paths}
+import java.nio.file.attribute.FileTime
+import org.junit.runner.{Description, Runner}
+import org.junit.runner.manipulation.Filter
+import scala.collection.JavaConverters._
+
+/**
+ * Splits the tests of a target between the shards Bazel runs it in, when it has a `shard_count`.
+ * Tests are split by unit, which is a test method, or a test class for classes that have no `@Test`
+ * methods or when sharding by class. Every shard sees the same units, so it can decide on its own
+ * which of them are its share.
+ *
+ * Units are dealt out round robin in name order. With the durations of a previous run, they are
+ * dealt out longest first, each to the shard with the least work so far, instead. The durations
+ * are read from the file in "bazel.discover.classes.shard.timings.file.path", which has a
+ * `<unit>\t<milliseconds>` line per unit, naming test methods as `<class>#<method>`.
+ */
+private[rulesscala] class TestSharding(shardIndex: Int, totalShards: Int, durations: Map[String, Long]) {
+
+  /** Returns the test classes with units in this shard, and a filter for the units of each. */
+  def shard(testClasses: Seq[DiscoveredTestClass], byMethod: Boolean): (Seq[DiscoveredTestClass], Filter) = {
+    val units = testClasses.flatMap { testClass =>
+      if (byMethod && testClass.testMethods.nonEmpty)
+        testClass.testMethods.map(TestSharding.unitOf(testClass.name, _))
+      else
+        Seq(testClass.name)
+    }
+    val selected = select(units)
+    val shardClasses = testClasses.filter { testClass =>
+      selected(testClass.name) ||
+        testClass.testMethods.exists(method => selected(TestSharding.unitOf(testClass.name, method)))
+    }
+    (shardClasses, new ShardFilter(selected))
+  }
+
+  private def select(units: Seq[String]): Set[String] = {
+    val sorted = units.distinct.sorted
+    if (durations.isEmpty) {
+      sorted.zipWithIndex.collect { case (unit, i) if i % totalShards == shardIndex => unit }.toSet
+    } else {
+      // Units without a duration, new ones most likely, are taken to be of average length
+      val known = sorted.flatMap(durations.get)
+      val defaultDuration = if (known.isEmpty) 1L else known.sum / known.size
+      val loads = Array.fill(totalShards)(0L)
+      val selected = Set.newBuilder[String]
+      for ((unit, duration) <- sorted.map(unit => unit -> durations.getOrElse(unit, defaultDuration))
+                                     .sortBy { case (unit, duration) => (-duration, unit) }) {
+        val shard = loads.indices.minBy(loads(_))
+        loads(shard) += duration
+        if (shard == shardIndex) selected += unit
+      }
+      selected.result()
+    }
+  }
+
+  private class ShardFilter(selected: Set[String]) extends Filter {
+    // The tests of a class unit may be described with other class names, e.g. the classes run by a
+    // `Suite` or `Enclosed` runner, so a class unit is kept or dropped as a whole by the
+    // description of its runner.
+    override def apply(child: AnyRef): Unit = child match {
+      case runner: Runner if isClassUnit(runner.getDescription) => ()
+      case _ => super.apply(child)
+    }
+
+    override def shouldRun(description: Description): Boolean =
+      if (isClassUnit(description)) {
+        true
+      } else if (description.isTest) {
+        // Parameterized tests are named <method>[<parameters>]
+        val method = Option(description.getMethodName).map(_.takeWhile(_ != '['))
+        method.exists(m => selected(TestSharding.unitOf(description.getClassName, m)))
+      } else {
+        description.getChildren.asScala.exists(shouldRun)
+      }
+
+    private def isClassUnit(description: Description): Boolean =
+      Option(description.getClassName).exists(selected)
+
+    override def describe(): String = s"shard ${shardIndex + 1} of $totalShards"
+  }
+}
+
+private[rulesscala] object TestSharding {
+
+  /**
+   * Returns the sharding of this run of the tests, if it is sharded. Sharding support is announced
+   * to Bazel by touching the shard status file.
+   */
+  def fromEnvironment: Option[TestSharding] =
+    for {
+      totalShards <- sys.env.get("TEST_TOTAL_SHARDS").map(_.toInt) if totalShards > 1
+      shardIndex <- sys.env.get("TEST_SHARD_INDEX").map(_.toInt)
+    } yield {
+      sys.env.get("TEST_SHARD_STATUS_FILE").map(Paths.get(_)).foreach { statusFile =>
+        if (Files.exists(statusFile))
+          Files.setLastModifiedTime(statusFile, FileTime.fromMillis(System.currentTimeMillis))
+        else
+          Files.createFile(statusFile)
+      }
+      new TestSharding(shardIndex, totalShards, durations)
+    }
+
+  /**
+   * Whether `filter` is the test runner's own sharding filter. The discovering suites shard their
+   * tests themselves, so the runner must not split them up again.
+   */
+  def isRunnerShardingFilter(filter: Filter): Boolean =
+    sys.env.contains("TEST_TOTAL_SHARDS") &&
+      filter.getClass.getName.startsWith("com.google.testing.junit.runner.sharding.")
+
+  private def unitOf(className: String, method: String): String =
+    className + "#" + method
+
+  private def durations: Map[String, Long] =
+    Option(System.getProperty("bazel.discover.classes.shard.timings.file.path"))
+      .map(Paths.get(_))
+      .filter(Files.isRegularFile(_))
+      .map { timings =>
+        Files.readAllLines(timings, UTF_8).asScala
+          .map(_.split('\t'))
+          .collect { case Array(unit, millis) => unit -> millis.trim.toLong }
+          .toMap
+      }
+      .getOrElse(Map.empty)
+}
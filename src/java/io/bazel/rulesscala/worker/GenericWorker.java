@@ -6,22 +6,47 @@ import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GenericWorker {
+  /** Upper bound on the number of multiplexed requests that are processed at the same time */
+  public static final String MAX_CONCURRENCY_PROPERTY =
+      "io.bazel.rulesscala.worker.max_concurrency";
+
+  /** Appends a summary of the worker's heap to the output of every response */
+  public static final String VERBOSE_PROPERTY = "io.bazel.rulesscala.worker.verbose";
+
   protected final Processor processor;
 
+  private ThreadRoutingOutputStream outputRouter;
+  private MemoryPolicy memoryPolicy;
+  private ExecutorService executor;
+
+  // Requests that were accepted and not responded to yet
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // What a request failed with that leaves the worker unfit to process any more of them
+  private volatile Throwable fatalFailure;
+
   public GenericWorker(Processor p) {
     processor = p;
   }
 
+  /**
+   * Routes the output of the current thread to {@code ps} while a request is processed.
+   * Subclasses which need to redirect additional streams (e.g. scala.Console) should call through
+   * to this method and only redirect thread local state, since requests may run concurrently.
+   */
   protected void setupOutput(PrintStream ps) {
-    System.setOut(ps);
-    System.setErr(ps);
+    outputRouter.setTarget(ps);
   }
 
   // Mostly lifted from bazel
@@ -29,38 +54,144 @@ public class GenericWorker {
     PrintStream originalStdOut = System.out;
     PrintStream originalStdErr = System.err;
 
-    while (true) {
-      try {
+    // Output of a request is captured per thread, anything else goes to stderr so it can never
+    // corrupt the protocol on stdout.
+    outputRouter = new ThreadRoutingOutputStream(originalStdErr);
+    memoryPolicy = MemoryPolicy.fromSystemProperties();
+    PrintStream routedOutput = new PrintStream(outputRouter, true);
+    System.setOut(routedOutput);
+    System.setErr(routedOutput);
+
+    executor =
+        Executors.newFixedThreadPool(
+            Integer.getInteger(
+                MAX_CONCURRENCY_PROPERTY, Runtime.getRuntime().availableProcessors()),
+            runnable -> {
+              Thread t = new Thread(runnable, "multiplexed-request");
+              t.setDaemon(true);
+              return t;
+            });
+
+    try {
+      while (true) {
         WorkRequest request = WorkRequest.parseDelimitedFrom(System.in);
         if (request == null) {
           break;
         }
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int exitCode = 0;
-
-        try (PrintStream ps = new PrintStream(baos)) {
-          setupOutput(ps);
-
-          try {
-            processor.processRequest(request.getArgumentsList());
-          } catch (Exception e) {
-            e.printStackTrace();
-            exitCode = 1;
-          }
-        } finally {
-          System.setOut(originalStdOut);
-          System.setErr(originalStdErr);
+        // Counted before checking for a fatal failure, so that the worker can't exit in between
+        inFlight.incrementAndGet();
+        if (fatalFailure != null) {
+          reject(request, originalStdOut);
+        } else if (request.getRequestId() == 0) {
+          // a singleplex request, bazel waits for its response before sending the next one
+          respond(request, originalStdOut);
+        } else {
+          executor.execute(() -> respond(request, originalStdOut));
         }
+      }
+    } finally {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      System.setOut(originalStdOut);
+      System.setErr(originalStdErr);
+    }
+  }
 
-        WorkResponse.newBuilder()
-            .setOutput(baos.toString())
-            .setExitCode(exitCode)
-            .build()
-            .writeDelimitedTo(System.out);
-        System.out.flush();
-      } finally {
+  private void respond(WorkRequest request, PrintStream out) {
+    boolean collect = false;
+    Throwable failure = null;
+    try {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      failure = processRequest(request, baos);
+      WorkResponse response =
+          WorkResponse.newBuilder()
+              .setOutput(baos.toString())
+              .setExitCode(failure == null ? 0 : 1)
+              .setRequestId(request.getRequestId())
+              .build();
+      collect = memoryPolicy.shouldCollect();
+      if (Boolean.getBoolean(VERBOSE_PROPERTY)) {
+        response =
+            response
+                .toBuilder()
+                .setOutput(response.getOutput() + MemoryPolicy.heapSummary(collect) + "\n")
+                .build();
+      }
+      synchronized (out) {
+        response.writeDelimitedTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      if (failure instanceof VirtualMachineError) {
+        // The worker can't be trusted after this. The requests in flight still respond, any new
+        // ones are failed, and the worker exits once they are all done so bazel starts a new one.
+        fatalFailure = failure;
+      } else if (collect) {
+        // collect after responding so that bazel does not wait on it
         System.gc();
       }
+      responded();
+    }
+  }
+
+  /** Fails a request that arrived after a fatal failure, without processing it. */
+  private void reject(WorkRequest request, PrintStream out) {
+    try {
+      WorkResponse response =
+          WorkResponse.newBuilder()
+              .setOutput("The worker is restarting after failing with " + fatalFailure + "\n")
+              .setExitCode(1)
+              .setRequestId(request.getRequestId())
+              .build();
+      synchronized (out) {
+        response.writeDelimitedTo(out);
+        out.flush();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      responded();
+    }
+  }
+
+  /**
+   * Exits once the last request in flight has responded after a fatal failure. Every request
+   * has its response written by then, so the pool is idle and is shut down before exiting.
+   */
+  private void responded() {
+    if (inFlight.decrementAndGet() == 0 && fatalFailure != null) {
+      executor.shutdown();
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Processes a request with its output written to {@code output}. Returns what it failed with, or
+   * null if it succeeded. Errors are returned too, so that the request is always responded to.
+   */
+  private Throwable processRequest(WorkRequest request, OutputStream output) {
+    try (PrintStream ps = new PrintStream(output)) {
+      setupOutput(ps);
+
+      try {
+        processor.processRequest(request.getArgumentsList());
+        return null;
+      } catch (Throwable e) {
+        try {
+          e.printStackTrace();
+        } catch (Throwable ignored) {
+          // e.g. out of memory again, the exit code still reports the failure
+        }
+        return e;
+      }
+    } finally {
+      outputRouter.clearTarget();
     }
   }
 
@@ -105,6 +236,49 @@ public class GenericWorker {
     }
   }
 
+  /**
+   * Forwards writes to the stream registered for the current thread, so that the output of
+   * concurrently processed requests is kept apart. Other threads write to the fallback. Streams are
+   * not inherited, since pooled threads started during a request outlive it and go on to work for
+   * other requests.
+   */
+  private static class ThreadRoutingOutputStream extends OutputStream {
+    private final OutputStream fallback;
+    private final ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+    ThreadRoutingOutputStream(OutputStream fallback) {
+      this.fallback = fallback;
+    }
+
+    void setTarget(OutputStream out) {
+      target.set(out);
+    }
+
+    void clearTarget() {
+      target.remove();
+    }
+
+    private OutputStream current() {
+      OutputStream out = target.get();
+      return out == null ? fallback : out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current().flush();
+    }
+  }
+
   /** This is expected to be called by a main method */
   public void run(String[] argArray) throws Exception {
     if (contains(argArray, "--persistent_worker")) {
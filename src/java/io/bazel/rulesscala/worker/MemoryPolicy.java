@@ -0,0 +1,95 @@
+package io.bazel.rulesscala.worker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a persistent worker should force a garbage collection after a request. A full
+ * collection per request keeps the worker small but stops the world on every compile, so this is
+ * configurable with the {@code io.bazel.rulesscala.worker.gc_policy} system property:
+ *
+ * <ul>
+ *   <li>{@code never}: leave collection to the JVM.
+ *   <li>{@code heap_threshold} (default): collect when the used heap exceeds the fraction of the
+ *       max heap given by {@code io.bazel.rulesscala.worker.gc_heap_threshold} (default 0.8).
+ *   <li>{@code every_n_requests}: collect after every N requests, where N is given by {@code
+ *       io.bazel.rulesscala.worker.gc_every_n_requests} (default 1, the legacy behaviour).
+ * </ul>
+ */
+class MemoryPolicy {
+  static final String POLICY_PROPERTY = "io.bazel.rulesscala.worker.gc_policy";
+  static final String HEAP_THRESHOLD_PROPERTY = "io.bazel.rulesscala.worker.gc_heap_threshold";
+  static final String EVERY_N_REQUESTS_PROPERTY =
+      "io.bazel.rulesscala.worker.gc_every_n_requests";
+
+  private enum Kind {
+    NEVER,
+    HEAP_THRESHOLD,
+    EVERY_N_REQUESTS
+  }
+
+  private final Kind kind;
+  private final double heapThreshold;
+  private final long everyNRequests;
+  private final AtomicLong requests = new AtomicLong();
+
+  private MemoryPolicy(Kind kind, double heapThreshold, long everyNRequests) {
+    this.kind = kind;
+    this.heapThreshold = heapThreshold;
+    this.everyNRequests = everyNRequests;
+  }
+
+  static MemoryPolicy fromSystemProperties() {
+    String policy = System.getProperty(POLICY_PROPERTY, "heap_threshold");
+    Kind kind;
+    switch (policy) {
+      case "never":
+        kind = Kind.NEVER;
+        break;
+      case "heap_threshold":
+        kind = Kind.HEAP_THRESHOLD;
+        break;
+      case "every_n_requests":
+        kind = Kind.EVERY_N_REQUESTS;
+        break;
+      default:
+        throw new IllegalArgumentException(
+            "Unknown " + POLICY_PROPERTY + ": " + policy + ", expected one of "
+                + "never, heap_threshold, every_n_requests");
+    }
+    double heapThreshold = Double.parseDouble(System.getProperty(HEAP_THRESHOLD_PROPERTY, "0.8"));
+    long everyNRequests = Long.getLong(EVERY_N_REQUESTS_PROPERTY, 1L);
+    if (everyNRequests < 1) {
+      throw new IllegalArgumentException(EVERY_N_REQUESTS_PROPERTY + " must be at least 1");
+    }
+    return new MemoryPolicy(kind, heapThreshold, everyNRequests);
+  }
+
+  /** Records a finished request and returns whether a collection should be run for it. */
+  boolean shouldCollect() {
+    long count = requests.incrementAndGet();
+    switch (kind) {
+      case HEAP_THRESHOLD:
+        return usedHeap() > heapThreshold * Runtime.getRuntime().maxMemory();
+      case EVERY_N_REQUESTS:
+        return count % everyNRequests == 0;
+      default:
+        return false;
+    }
+  }
+
+  static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /** A one line summary of the heap, for verbose worker output. */
+  static String heapSummary(boolean collecting) {
+    long mb = 1024 * 1024;
+    return String.format(
+        "Worker heap after request: %d MB used, %d MB committed, %d MB max%s",
+        usedHeap() / mb,
+        Runtime.getRuntime().totalMemory() / mb,
+        Runtime.getRuntime().maxMemory() / mb,
+        collecting ? ", collecting" : "");
+  }
+}
@@ -35,9 +35,11 @@ import com.twitter.scrooge._
 import com.twitter.scrooge.ast.Document
 import com.twitter.scrooge.backend.{GeneratorFactory, ScalaGenerator, ServiceOption}
 import com.twitter.scrooge.frontend.{FileParseException, TypeResolver, ThriftParser, Importer, MultiImporter, ZipImporter}
+import io.bazel.rulesscala.io_utils.DeleteRecursively
 import java.io.{File, FileWriter}
-import java.nio.file.Paths
-import java.util.jar.{ JarFile, JarEntry }
+import java.nio.file.{Files, Path, Paths, StandardCopyOption}
+import java.util.concurrent.{ Callable, ExecutionException, Executors, ThreadFactory }
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.logging.Level
 import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
@@ -46,19 +48,20 @@ object CompilerDefaults {
   var language: String = "scala"
   var defaultNamespace: String = "thrift"
 
-  def listJar(_jar: File): List[String] =
-    try {
-      val files = List.newBuilder[String]
-      val jar = new JarFile(_jar)
-      val enumEntries = jar.entries()
-      while (enumEntries.hasMoreElements) {
-        val file = enumEntries.nextElement().asInstanceOf[JarEntry]
-        if (!file.isDirectory) {
-          files += file.getName
-        }
+  // Shared by all the requests of a worker
+  lazy val executor = Executors.newFixedThreadPool(
+    Runtime.getRuntime.availableProcessors,
+    new ThreadFactory {
+      def newThread(runnable: Runnable): Thread = {
+        val thread = new Thread(runnable, "scrooge-generator")
+        thread.setDaemon(true)
+        thread
       }
-      files.result()
-    }
+    })
+
+  // The listing is shared with the importers of the jar, so it is only read once
+  def listJar(_jar: File): List[String] =
+    try FocusedZipImporter.listFiles(_jar)
     catch {
       case x: Exception =>
         throw new Exception(s"failed to open: ${_jar}", x)
@@ -84,28 +87,16 @@ class Compiler {
   var language: String = CompilerDefaults.language
   var defaultNamespace: String = CompilerDefaults.defaultNamespace
   var scalaWarnOnJavaNSFallback: Boolean = false
+  // Documents parsed by earlier runs, to take the includes from
+  var parsedDocuments: scala.Option[ParsedDocumentCache] = None
 
 
   def run() {
-    // if --gen-file-map is specified, prepare the map file.
-    fileMapWriter = fileMapPath.map { path =>
-      val file = new File(path)
-      val dir = file.getParentFile
-      if (dir != null && !dir.exists()) {
-        dir.mkdirs()
-      }
-      if (verbose) {
-        println("+ Writing file mapping to %s".format(path))
-      }
-      new FileWriter(file)
-    }
-
     val allJars: List[File] =
       ((includeJars.toList) ::: (compileJars.toList))
         .map { path => (new File(path)).getCanonicalFile }
 
     val isJava = language.equals("java")
-    val documentCache = new TrieMap[String, Document]
 
     // compile
     val allPaths = for {
@@ -113,12 +104,20 @@ class Compiler {
       inputFullPath <- CompilerDefaults.listJar(new File(jar)).iterator
     } yield inputFullPath
 
-    val rootImporter = FocusedZipImporter.forPaths(None, allJars)
-
     // Here we only should only pass Thrift files to the compiler, other files
     // (e.g. manifest files) are not accepted.
-    allPaths.filter(_.endsWith(".thrift")).foreach { inputFullPath =>
-      try {
+    val inputs = allPaths.filter(_.endsWith(".thrift")).toList
+
+    def forFile[T](inputFullPath: String)(f: => T): T =
+      try f
+      catch {
+        case e: Throwable => throw new FileParseException(inputFullPath, e)
+      }
+
+    // The files are parsed one after another, so that a file included by several of them is
+    // parsed once and then taken from the document cache.
+    def parse(documentCache: TrieMap[String, Document]) = inputs.map { inputFullPath =>
+      forFile(inputFullPath) {
         val inputFile = Paths.get(inputFullPath).getFileName.toString
         val focus = Option((new File(inputFullPath)).getParentFile)
         // allow lookup either focused, or relative to the root of the repo
@@ -132,41 +131,131 @@ class Compiler {
         )
         parser.logger.setLevel(Level.OFF) // scrooge warns on file names with "/"
         val doc = parser.parseFile(inputFile).mapNamespaces(namespaceMappings.toMap)
+        (inputFullPath, inputFile, doc)
+      }
+    }
+    // Only parsing reads from the zips, so they are let go of before generating
+    val rootImporter = FocusedZipImporter.forPaths(None, allJars)
+    val docs =
+      try parsedDocuments match {
+        case Some(cache) => cache.withDocuments(allJars)(parse)
+        case None => parse(new TrieMap[String, Document])
+      } finally rootImporter.index.close()
 
-        if (verbose) println("+ Compiling %s".format(inputFile))
-        val resolvedDoc = TypeResolver()(doc)
-        val generator = GeneratorFactory(
-          language,
-          resolvedDoc,
-          defaultNamespace,
-          experimentFlags)
-
-        generator match {
-          case g: ScalaGenerator => g.warnOnJavaNamespaceFallback = scalaWarnOnJavaNSFallback
-          case _ => ()
-        }
-
-        val generatedFiles = generator(
-          flags.toSet,
-          new File(destFolder),
-          dryRun
-        ).map {
-          _.getPath
+    // Resolving and generating only read the parsed documents, so the files are done in parallel.
+    // Each file is generated into a directory of its own, and the directories are then merged in
+    // the order of the inputs, so that a path generated for several of them is always taken from
+    // the last one, as when they were generated one after another.
+    val staging = Files.createTempDirectory(
+      Files.createDirectories(Paths.get(destFolder)), ".generating").toAbsolutePath
+    try {
+      // if --gen-file-map is specified, prepare the map file.
+      fileMapWriter = fileMapPath.map { path =>
+        val file = new File(path)
+        val dir = file.getParentFile
+        if (dir != null && !dir.exists()) {
+          dir.mkdirs()
         }
         if (verbose) {
-          println("+ Generated %s".format(generatedFiles.mkString(", ")))
+          println("+ Writing file mapping to %s".format(path))
         }
-        fileMapWriter.foreach { w =>
-          generatedFiles.foreach { path =>
-            w.write(inputFullPath + " -> " + path + "\n")
+        new FileWriter(file)
+      }
+
+      val generated = generateAll(docs, staging)
+      inputs.zip(generated).zipWithIndex.foreach { case ((inputFullPath, generatedFiles), index) =>
+        val inputFolder = staging.resolve(index.toString)
+        generatedFiles.foreach { generatedFile =>
+          val relative = inputFolder.relativize(Paths.get(generatedFile).toAbsolutePath)
+          val path = new File(destFolder, relative.toString)
+          if (!dryRun) {
+            Files.createDirectories(path.toPath.getParent)
+            Files.move(Paths.get(generatedFile), path.toPath, StandardCopyOption.REPLACE_EXISTING)
           }
+          fileMapWriter.foreach(_.write(inputFullPath + " -> " + path.getPath + "\n"))
         }
-      } catch {
-        case e: Throwable => throw new FileParseException(inputFullPath, e)
       }
+    } finally {
+      // flush and close the map file
+      fileMapWriter.foreach { _.close() }
+      DeleteRecursively.run(staging)
     }
+  }
+
+  /**
+   * Generates the code for each document into `<staging>/<index of the input>`, returning the
+   * generated files of each. Once a file fails the files not yet started are skipped, and all of
+   * them are waited for before the first failure is thrown, with the later ones suppressed.
+   */
+  private def generateAll(
+      docs: List[(String, String, Document)], staging: Path): List[Iterable[String]] = {
+    // The pool's threads outlive the request, so they are given its output for each file
+    val (out, err) = (Console.out, Console.err)
+    val failed = new AtomicBoolean(false)
+    val generating = docs.zipWithIndex.map { case ((inputFullPath, inputFile, doc), index) =>
+      CompilerDefaults.executor.submit(new Callable[Iterable[String]] {
+        def call(): Iterable[String] =
+          if (failed.get) Nil
+          else
+            try Console.withOut(out)(Console.withErr(err)(generate()))
+            catch {
+              case e: Throwable =>
+                failed.set(true)
+                throw e
+            }
+
+        private def generate(): Iterable[String] = forFile(inputFullPath) {
+          if (verbose) println("+ Compiling %s".format(inputFile))
+          val resolvedDoc = TypeResolver()(doc)
+          val generator = GeneratorFactory(
+            language,
+            resolvedDoc,
+            defaultNamespace,
+            experimentFlags)
+
+          generator match {
+            case g: ScalaGenerator => g.warnOnJavaNamespaceFallback = scalaWarnOnJavaNSFallback
+            case _ => ()
+          }
 
-    // flush and close the map file
-    fileMapWriter.foreach { _.close() }
+          val generatedFiles = generator(
+            flags.toSet,
+            staging.resolve(index.toString).toFile,
+            dryRun
+          ).map {
+            _.getPath
+          }
+          if (verbose) {
+            println("+ Generated %s".format(generatedFiles.mkString(", ")))
+          }
+          generatedFiles
+        }
+      })
+    }
+
+    var failure: Throwable = null
+    var interrupted = false
+    val generated = generating.map { future =>
+      var result: scala.Option[Iterable[String]] = None
+      while (result.isEmpty) {
+        try result = Some(future.get())
+        catch {
+          case _: InterruptedException =>
+            interrupted = true
+            failed.set(true)
+          case e: ExecutionException =>
+            if (failure == null) failure = e.getCause
+            else failure.addSuppressed(e.getCause)
+            result = Some(Nil)
+        }
+      }
+      result.get
+    }
+    if (interrupted) {
+      Thread.currentThread.interrupt()
+      if (failure == null) failure = new InterruptedException("Interrupted while generating")
+    }
+    if (failure != null) throw failure
+    generated
   }
 }
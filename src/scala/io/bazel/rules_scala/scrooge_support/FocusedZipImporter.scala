@@ -2,20 +2,123 @@ package io.bazel.rules_scala.scrooge_support
 
 import com.twitter.scrooge.frontend.{ FileContents, Importer }
 
-import java.io.File
+import java.io.{ Closeable, File, FileInputStream }
+import java.security.MessageDigest
+import java.util.{ Base64, LinkedHashMap, Map => JMap }
 import java.util.zip.{ZipFile, ZipEntry}
+import scala.collection.JavaConverters._
 import scala.io.Source
 
 object FocusedZipImporter {
+  private val MaxOpenZips = 1024
+
+  /**
+   * A zip opened by an earlier run, good while the file keeps its size and modification time.
+   * The pool holds one reference to it and each run reading from it another, and it is closed
+   * once it has left the pool and the last run let go of it.
+   */
+  class OpenZip private[FocusedZipImporter] (
+      val file: File, val length: Long, val lastModified: Long) {
+    val zipFile = new ZipFile(file)
+    private val zipEntries = zipFile.entries.asScala.toList
+    val entries: Map[String, ZipEntry] = zipEntries.map(entry => entry.getName -> entry).toMap
+    // the names of the files in it, in the order of the zip
+    val files: List[String] = zipEntries.filterNot(_.isDirectory).map(_.getName)
+    private var references = 1
+
+    def isCurrent: Boolean = file.length == length && file.lastModified == lastModified
+
+    // The SHA-256 digest of the file, read when first asked for and then kept with the listing
+    lazy val digest: String = {
+      val md = MessageDigest.getInstance("SHA-256")
+      val in = new FileInputStream(file)
+      try {
+        val buffer = new Array[Byte](1 << 16)
+        var read = in.read(buffer)
+        while (read != -1) {
+          md.update(buffer, 0, read)
+          read = in.read(buffer)
+        }
+      } finally in.close()
+      Base64.getEncoder.encodeToString(md.digest())
+    }
+
+    def read(entry: ZipEntry): String =
+      Source.fromInputStream(zipFile.getInputStream(entry), "UTF-8").mkString
+
+    private[FocusedZipImporter] def acquire(): Unit = synchronized { references += 1 }
+
+    private[FocusedZipImporter] def release(): Unit = synchronized {
+      references -= 1
+      if (references == 0) zipFile.close()
+    }
+  }
+
+  // The documents read from the zips are kept by ParsedDocumentCache, so only the listings are
+  // kept here
+  private val openZips = new LinkedHashMap[File, OpenZip](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: JMap.Entry[File, OpenZip]): Boolean = {
+      val evicted = size > MaxOpenZips
+      if (evicted) eldest.getValue.release()
+      evicted
+    }
+  }
+
+  private def open(zip: File): OpenZip = openZips.synchronized {
+    Option(openZips.get(zip)).filter(_.isCurrent).getOrElse {
+      val opened = new OpenZip(zip, zip.length, zip.lastModified)
+      Option(openZips.put(zip, opened)).foreach(_.release())
+      opened
+    }
+  }
+
+  // A run's lease on a zip, taken while the pool still holds it so it can not be closed between
+  private def lease(zip: File): OpenZip = openZips.synchronized {
+    val opened = open(zip)
+    opened.acquire()
+    opened
+  }
+
+  /** Lists the files in `zip`, from the zip kept open for it. */
+  def listFiles(zip: File): List[String] = open(zip.getCanonicalFile).files
+
+  /** The digest of `zip`, kept with the zip kept open for it. */
+  def digestOf(zip: File): String = open(zip.getCanonicalFile).digest
+
+  /**
+   * The entries of all the zips of a run, by name. An entry is taken from the first zip with it.
+   * The zips are leased until the index is closed.
+   */
+  class ZipIndex private[FocusedZipImporter] (zips: List[File]) extends Closeable {
+    private val leased = {
+      val acquired = List.newBuilder[OpenZip]
+      try zips.foreach(zip => acquired += lease(zip))
+      catch {
+        case e: Throwable =>
+          acquired.result().foreach(_.release())
+          throw e
+      }
+      acquired.result()
+    }
+    val entries: Map[String, (ZipEntry, OpenZip)] =
+      leased.reverseIterator.flatMap { zip =>
+        zip.entries.valuesIterator.map(entry => entry.getName -> (entry, zip))
+      }.toMap
+    val maxLastMod: Option[Long] = zips.map(_.lastModified).reduceOption(_ max _)
+
+    def close(): Unit = leased.foreach(_.release())
+  }
+
   def forPaths(focus: Option[File], zips: List[File]): FocusedZipImporter =
-    FocusedZipImporter(focus, zips, zips.map(new ZipFile(_)))
+    FocusedZipImporter(focus, zips, new ZipIndex(zips))
 }
 
 /**
  * A FocusedZipImporter is just a ZipImporter that has a current directory
  * associated with it (the focus)
  */
-case class FocusedZipImporter(focus: Option[File], zips: List[File], zipFiles: List[ZipFile]) extends Importer {
+case class FocusedZipImporter(focus: Option[File], zips: List[File], index: FocusedZipImporter.ZipIndex)
+    extends Importer {
   override lazy val canonicalPaths = zips.map(_.getCanonicalPath)
 
   private def toZipEntryPath(n: String): String = focus match {
@@ -37,33 +140,29 @@ case class FocusedZipImporter(focus: Option[File], zips: List[File], zipFiles: L
       else newPath
   }
 
-  private def resolve(filename: String): Option[(ZipEntry, ZipFile, FocusedZipImporter)] = {
+  private def resolve(
+      filename: String): Option[(ZipEntry, FocusedZipImporter.OpenZip, FocusedZipImporter)] = {
     val fullPath = toZipEntryPath(filename)
-    zipFiles
-      .iterator
-      .map { z => Option(z.getEntry(fullPath)).map((_, z)) }
-      .collectFirst { case Some(s) => s }
-      .map { case (ze, z) =>
-        // prepare the new focus for this file:
-        val newF = Option(new File(fullPath).getParentFile)
-        (ze, z, copy(focus = newF))
-      }
+    index.entries.get(fullPath).map { case (ze, z) =>
+      // prepare the new focus for this file:
+      val newF = Option(new File(fullPath).getParentFile)
+      (ze, z, copy(focus = newF))
+    }
   }
 
-  private val maxLastMod = zips.map(_.lastModified).reduceOption(_ max _)
   // uses the lastModified time of the zip/jar file
   def lastModified(filename: String): Option[Long] =
-    resolve(filename).flatMap(_ => maxLastMod)
+    resolve(filename).flatMap(_ => index.maxLastMod)
 
   def apply(filename: String): Option[FileContents] =
-    resolve(filename) map { case (entry, zipFile, importer) =>
-      FileContents(importer, Source.fromInputStream(zipFile.getInputStream(entry), "UTF-8").mkString, Some(entry.getName))
+    resolve(filename) map { case (entry, zip, importer) =>
+      FileContents(importer, zip.read(entry), Some(entry.getName))
     }
 
   private[this] def canResolve(filename: String): Boolean = resolve(filename).isDefined
 
   override def getResolvedPath(filename: String): Option[String] =
-    resolve(filename).map { case (_, zf, _) =>
-      new File(zf.getName, toZipEntryPath(filename)).getCanonicalPath
+    resolve(filename).map { case (_, zip, _) =>
+      new File(zip.zipFile.getName, toZipEntryPath(filename)).getCanonicalPath
     }
 }
@@ -0,0 +1,82 @@
+package io.bazel.rules_scala.scrooge_support
+
+import com.twitter.scrooge.ast.{ Document, Include }
+import java.io.File
+import java.util.{ IdentityHashMap, LinkedHashMap, Map => JMap }
+import scala.collection.JavaConverters._
+import scala.collection.concurrent.TrieMap
+import scala.collection.mutable
+
+/**
+ * Keeps the thrift documents a worker parsed for its following requests, so that the includes
+ * shared by many targets are only parsed again when their jar changes. Documents are kept by jar,
+ * digest of the jar and entry, and the least recently used ones are dropped past `maxDocuments`.
+ * The digests are those FocusedZipImporter keeps with its open zips, so a jar is only hashed again
+ * when its size or modification time changes, like its listing.
+ *
+ * The document cache of a compile is keyed by resolved path, which for the jars of a
+ * FocusedZipImporter is `<canonical jar path>/<entry>`.
+ */
+class ParsedDocumentCache(maxDocuments: Int) {
+  private case class Key(jar: String, digest: String, entry: String)
+
+  // A document holds the documents it includes, so it is only good while they are
+  private case class Entry(document: Document, includes: Seq[String])
+
+  private val entries = new LinkedHashMap[Key, Entry](16, 0.75f, true) {
+    override def removeEldestEntry(eldest: JMap.Entry[Key, Entry]): Boolean =
+      size > maxDocuments
+  }
+
+  /**
+   * Runs `parse` with a document cache holding the kept documents that are still good for `jars`,
+   * and keeps the documents it parsed.
+   */
+  def withDocuments[T](jars: Seq[File])(parse: TrieMap[String, Document] => T): T = {
+    val digests = jars.map(jar => jar.getPath -> FocusedZipImporter.digestOf(jar)).toMap
+    val documentCache = load(digests)
+    val result = parse(documentCache)
+    store(digests, documentCache)
+    result
+  }
+
+  private def load(digests: Map[String, String]): TrieMap[String, Document] = {
+    val kept = entries.synchronized {
+      entries.keySet.asScala.toList
+        .filter(key => digests.get(key.jar).contains(key.digest))
+        .map(key => resolvedPath(key.jar, key.entry) -> entries.get(key))
+    }.toMap
+
+    // thrift includes can not be cyclic
+    val good = mutable.Map.empty[String, Boolean]
+    def isGood(path: String): Boolean =
+      good.getOrElseUpdate(path, kept.get(path).exists(_.includes.forall(isGood)))
+
+    val documentCache = new TrieMap[String, Document]
+    kept.foreach { case (path, entry) =>
+      if (isGood(path)) documentCache.put(path, entry.document)
+    }
+    documentCache
+  }
+
+  private def store(digests: Map[String, String], documentCache: TrieMap[String, Document]): Unit = {
+    val snapshot = documentCache.readOnlySnapshot()
+    val paths = new IdentityHashMap[Document, String]
+    snapshot.foreach { case (path, document) => paths.put(document, path) }
+
+    val stored = for {
+      (path, document) <- snapshot.toList
+      (jar, digest) <- digests.find { case (jar, _) => path.startsWith(jar + File.separator) }
+      includes = document.headers.collect { case Include(_, included) => paths.get(included) }
+      // documents with includes that were not resolved to a path can not be checked later on
+      if !includes.contains(null)
+    } yield Key(jar, digest, path.substring(jar.length + 1)) -> Entry(document, includes)
+
+    entries.synchronized {
+      stored.foreach { case (key, entry) => entries.put(key, entry) }
+    }
+  }
+
+  private def resolvedPath(jar: String, entry: String): String =
+    jar + File.separator + entry
+}
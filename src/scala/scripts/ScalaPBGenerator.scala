@@ -1,21 +1,22 @@
 package scripts
 
 import java.io.PrintStream
-import java.nio.file.Path
+import java.nio.file.{Path, Paths}
 
+import com.google.protobuf.compiler.PluginProtos.CodeGeneratorResponse
 import com.trueaccord.scalapb.{ScalaPBC, ScalaPbcException}
 import io.bazel.rulesscala.io_utils.DeleteRecursively
 import io.bazel.rulesscala.jar.JarCreator
 import io.bazel.rulesscala.worker.{GenericWorker, Processor}
-import protocbridge.ProtocBridge
+import protocbridge.{ProtocBridge, ProtocCodeGenerator}
+import scala.collection.JavaConverters._
 
 import scalapb.ScalaPbCodeGenerator
 
 object ScalaPBWorker extends GenericWorker(new ScalaPBGenerator) {
 
   override protected def setupOutput(ps: PrintStream): Unit = {
-    System.setOut(ps)
-    System.setErr(ps)
+    super.setupOutput(ps)
     Console.setErr(ps)
     Console.setOut(ps)
   }
@@ -30,6 +31,31 @@ object ScalaPBWorker extends GenericWorker(new ScalaPBGenerator) {
   }
 }
 
+/**
+ * Runs `generator` and keeps the files it generates, handing protoc a response without them so
+ * that they are not written out. Responses with errors or insertion points are handed to protoc
+ * as they are, and then nothing is kept.
+ */
+class CollectingGenerator(generator: ProtocCodeGenerator) extends ProtocCodeGenerator {
+  @volatile private var collected: Option[Seq[CodeGeneratorResponse.File]] = None
+
+  /** The generated files, unless protoc was left to write them. */
+  def files: Option[Seq[CodeGeneratorResponse.File]] = collected
+
+  override def run(request: Array[Byte]): Array[Byte] = {
+    val response = CodeGeneratorResponse.parseFrom(generator.run(request))
+    val files = response.getFileList.asScala
+    if (response.hasError || files.exists(file => !file.hasName || file.hasInsertionPoint)) {
+      response.toByteArray
+    } else {
+      collected = Some(files.toList)
+      response.toBuilder.clearFile().build().toByteArray
+    }
+  }
+
+  override def suggestedDependencies = generator.suggestedDependencies
+}
+
 class ScalaPBGenerator extends Processor {
   def deleteDir(path: Path): Unit =
     try DeleteRecursively.run(path)
@@ -40,14 +66,27 @@ class ScalaPBGenerator extends Processor {
   def processRequest(args: java.util.List[String]) {
     val extractRequestResult = PBGenerateRequest.from(args)
     val config = ScalaPBC.processArgs(extractRequestResult.scalaPBArgs.toArray)
+    // The generated sources go straight into the jar, without being written to the output directory
+    val generator = new CollectingGenerator(ScalaPbCodeGenerator)
     val code = ProtocBridge.runWithGenerators(
       protoc = a => com.github.os72.protocjar.Protoc.runProtoc(a.toArray),
-      namedGenerators = Seq("scala" -> ScalaPbCodeGenerator),
+      namedGenerators = Seq("scala" -> generator),
       params = config.args)
 
     try {
       if (!config.throwException) {
-        JarCreator.buildJar(Array(extractRequestResult.jarOutput, extractRequestResult.scalaPBOutput.toString))
+        generator.files match {
+          case Some(files) =>
+            val jar = new JarCreator(Paths.get(extractRequestResult.jarOutput))
+            files.foreach { file =>
+              jar.addEntryWithDirectories(file.getName, file.getContentBytes.toByteArray)
+            }
+            jar.setNormalize(true)
+            jar.setCompression(true)
+            jar.execute()
+          case None =>
+            JarCreator.buildJar(Array(extractRequestResult.jarOutput, extractRequestResult.scalaPBOutput.toString))
+        }
       } else {
         if (code != 0) {
           throw new ScalaPbcException(s"Exit with code $code")
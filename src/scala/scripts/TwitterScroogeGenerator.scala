@@ -1,6 +1,6 @@
 package scripts
 
-import io.bazel.rules_scala.scrooge_support.{ Compiler, CompilerDefaults }
+import io.bazel.rules_scala.scrooge_support.{ Compiler, CompilerDefaults, ParsedDocumentCache }
 import com.twitter.scrooge.backend.WithFinagle
 import io.bazel.rulesscala.jar.JarCreator
 import io.bazel.rulesscala.io_utils.DeleteRecursively
@@ -17,8 +17,7 @@ import scala.io.Source
 object ScroogeWorker extends GenericWorker(new ScroogeGenerator) {
 
   override protected def setupOutput(ps: PrintStream): Unit = {
-    System.setOut(ps)
-    System.setErr(ps)
+    super.setupOutput(ps)
     Console.setErr(ps)
     Console.setOut(ps)
   }
@@ -34,6 +33,10 @@ object ScroogeWorker extends GenericWorker(new ScroogeGenerator) {
 }
 
 class ScroogeGenerator extends Processor {
+  // The includes of a target are mostly shared with other targets, so their documents are kept
+  // for the following requests
+  private val parsedDocuments = new ParsedDocumentCache(maxDocuments = 4096)
+
   def deleteDir(path: Path): Unit =
     try DeleteRecursively.run(path)
     catch {
@@ -77,6 +80,7 @@ class ScroogeGenerator extends Processor {
     val scroogeOutput = Files.createTempDirectory(tmp, "scrooge")
 
     val scrooge = new Compiler
+    scrooge.parsedDocuments = Some(parsedDocuments)
 
     if (additionalFlags.contains("--with-finagle")) {
       scrooge.flags += WithFinagle
@@ -0,0 +1,68 @@
+package io.bazel.rulesscala.scalac
+
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations._
+
+import scala.collection.JavaConverters._
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class CompileOptionsBenchmark {
+  @Param(Array("1000", "20000"))
+  var classpathEntries: Int = _
+
+  var lines: Seq[String] = _
+  var args: java.util.List[String] = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    // Laid out like the argfile written by compile_scala, with strict deps enabled
+    val jars = (0 until classpathEntries).map { i =>
+      s"bazel-out/k8-fastbuild/bin/external/maven/com/example/lib$i/lib$i-ijar.jar"
+    }
+    val sources = (0 until 500).map(i => s"src/main/scala/com/example/Source$i.scala")
+    val resources = (0 until 200).map(i => s"src/main/resources/com/example/resource$i.txt")
+    lines = Seq(
+      "Classpath: " + jars.mkString(":"),
+      "ClasspathResourceSrcs: ",
+      "Files: " + sources.mkString(","),
+      "JarOutput: bazel-out/k8-fastbuild/bin/example/example.jar",
+      "Manifest: bazel-out/k8-fastbuild/bin/example/example_MANIFEST.MF",
+      "Plugins: " + jars.take(3).mkString(","),
+      "PrintCompileTime: False",
+      "ExpectJavaOutput: True",
+      "ResourceDests: " + resources.map(_.stripPrefix("src/main/resources/")).mkString(","),
+      "ResourceJars: ",
+      "ResourceSrcs: " + resources.mkString(","),
+      "ResourceShortPaths: " + resources.mkString(","),
+      "ResourceStripPrefix: ",
+      "ScalacOpts: -deprecation,-feature,-unchecked,-Xlint",
+      "SourceJars: ",
+      "DependencyAnalyzerMode: error",
+      "UnusedDependencyCheckerMode: off",
+      "StatsfileOutput: bazel-out/k8-fastbuild/bin/example/example.statsfile",
+      "DependencyMap: bazel-out/k8-fastbuild/bin/example/example_dependency_map",
+      "CurrentTarget: //example:example"
+    )
+  }
+
+  // A worker reads the lines of each request afresh, so no hash codes are cached in them
+  @Setup(Level.Invocation)
+  def freshArgs(): Unit = {
+    args = lines.map(line => new String(line.toCharArray)).asJava
+  }
+
+  @Benchmark
+  def parse(): CompileOptions = new CompileOptions(args)
+
+  // The regex based parsing that parse() replaced, for comparison
+  @Benchmark
+  def splitParse(): Map[String, Array[String]] = {
+    val argMap = args.asScala.map(_.split(": ")).collect {
+      case Array(key, value) => key -> value
+    }.toMap
+    argMap.map { case (key, value) => key -> value.split(",") }
+  }
+}
@@ -0,0 +1,62 @@
+package io.bazel.rulesscala.scalac
+
+import java.io.FileOutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+import java.util.zip.{ZipEntry, ZipOutputStream}
+
+import io.bazel.rulesscala.io_utils.DeleteRecursively
+import org.openjdk.jmh.annotations._
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class ExtractJarBenchmark {
+  @Param(Array("1000", "10000"))
+  var entries: Int = _
+
+  var tmp: Path = _
+  var srcjar: Path = _
+  var output: Path = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    tmp = Files.createTempDirectory("extract_jar_benchmark")
+    srcjar = tmp.resolve("sources.srcjar")
+    val out = new ZipOutputStream(new FileOutputStream(srcjar.toFile))
+    try {
+      for (i <- 0 until entries) {
+        val pkg = s"com/example/pkg${i / 100}"
+        if (i % 100 == 0) {
+          out.putNextEntry(new ZipEntry(pkg + "/"))
+          out.closeEntry()
+        }
+        out.putNextEntry(new ZipEntry(s"$pkg/Source$i.scala"))
+        val source = s"package ${pkg.replace('/', '.')}\n\nobject Source$i {\n" +
+          (0 until 50).map(j => s"  def method$j(x: Int): Int = x + $j\n").mkString + "}\n"
+        out.write(source.getBytes(UTF_8))
+        out.closeEntry()
+      }
+    } finally {
+      out.close()
+    }
+  }
+
+  @Setup(Level.Invocation)
+  def createOutput(): Unit = {
+    output = Files.createTempDirectory(tmp, "out")
+  }
+
+  @TearDown(Level.Invocation)
+  def deleteOutput(): Unit = DeleteRecursively.run(output)
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = DeleteRecursively.run(tmp)
+
+  @Benchmark
+  def extractJar(): Int =
+    ScalacProcessor
+      .extractJar(srcjar.toString, output.toString, Array(".scala", ".java"))
+      .size
+}
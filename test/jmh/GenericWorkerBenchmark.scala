@@ -0,0 +1,68 @@
+package io.bazel.rulesscala.worker
+
+import java.io._
+import java.util.concurrent.TimeUnit
+
+import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest
+import org.openjdk.jmh.annotations._
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+class GenericWorkerBenchmark {
+  import GenericWorkerBenchmark._
+
+  @Param(Array("false", "true"))
+  var multiplex: Boolean = _
+
+  var requests: Array[Byte] = _
+  var stdin: InputStream = _
+  var stdout: PrintStream = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    System.setProperty("io.bazel.rulesscala.worker.gc_policy", "never")
+    val out = new ByteArrayOutputStream()
+    for (i <- 1 to Requests) {
+      val request = WorkRequest.newBuilder()
+      for (j <- 0 until 20) {
+        request.addArguments(s"Arg$j: value$j")
+      }
+      if (multiplex) {
+        request.setRequestId(i)
+      }
+      request.build().writeDelimitedTo(out)
+    }
+    requests = out.toByteArray
+    stdin = System.in
+    stdout = System.out
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = {
+    System.setIn(stdin)
+    System.setOut(stdout)
+  }
+
+  /** Reads, processes and answers a batch of requests through the persistent worker loop */
+  @Benchmark
+  @OperationsPerInvocation(Requests)
+  def roundTrip(): Unit = {
+    System.setIn(new ByteArrayInputStream(requests))
+    System.setOut(new PrintStream(NullOutputStream))
+    new GenericWorker(NoopProcessor).run(Array("--persistent_worker"))
+  }
+}
+
+object GenericWorkerBenchmark {
+  final val Requests = 1000
+
+  object NoopProcessor extends Processor {
+    override def processRequest(args: java.util.List[String]): Unit = println(args.get(0))
+  }
+
+  object NullOutputStream extends OutputStream {
+    override def write(b: Int): Unit = ()
+    override def write(b: Array[Byte], off: Int, len: Int): Unit = ()
+  }
+}
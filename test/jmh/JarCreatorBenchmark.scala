@@ -0,0 +1,51 @@
+package io.bazel.rulesscala.jar
+
+import java.nio.file.{Files, Path}
+import java.util.concurrent.TimeUnit
+
+import io.bazel.rulesscala.io_utils.DeleteRecursively
+import org.openjdk.jmh.annotations._
+
+import scala.util.Random
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+class JarCreatorBenchmark {
+  @Param(Array("1000", "10000", "100000"))
+  var entries: Int = _
+
+  @Param(Array("false", "true"))
+  var compression: Boolean = _
+
+  var tmp: Path = _
+  var input: Path = _
+  var output: Path = _
+
+  @Setup(Level.Trial)
+  def setup(): Unit = {
+    tmp = Files.createTempDirectory("jar_creator_benchmark")
+    input = tmp.resolve("classes")
+    output = tmp.resolve("out.jar")
+    // A class file sized, compressible file per entry, 100 to a directory
+    val random = new Random(entries)
+    for (i <- 0 until entries) {
+      val dir = input.resolve(s"pkg${i / 100}")
+      Files.createDirectories(dir)
+      val content = Array.fill(1024)(('a' + random.nextInt(8)).toByte)
+      Files.write(dir.resolve(s"Class$i.class"), content)
+    }
+  }
+
+  @TearDown(Level.Trial)
+  def tearDown(): Unit = DeleteRecursively.run(tmp)
+
+  @Benchmark
+  def execute(): Unit = {
+    val jarCreator = new JarCreator(output)
+    jarCreator.addDirectory(input)
+    jarCreator.setNormalize(true)
+    jarCreator.setCompression(compression)
+    jarCreator.execute()
+  }
+}
@@ -0,0 +1,30 @@
+package scalarules.test.junit
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+// Each latch is only released once all the tests waiting on it run at the same time
+object ParallelLatches {
+  val classes = new CountDownLatch(3)
+  val methods = new CountDownLatch(2)
+
+  def awaitOthers(latch: CountDownLatch): Unit = {
+    latch.countDown()
+    assertTrue("the other tests did not run at the same time", latch.await(30, TimeUnit.SECONDS))
+  }
+}
+
+class FirstParallelTest {
+  @Test def classesRunTogether(): Unit = ParallelLatches.awaitOthers(ParallelLatches.classes)
+}
+
+class SecondParallelTest {
+  @Test def classesRunTogether(): Unit = ParallelLatches.awaitOthers(ParallelLatches.classes)
+}
+
+class ThirdParallelTest {
+  @Test def classesRunTogether(): Unit = ParallelLatches.awaitOthers(ParallelLatches.classes)
+  @Test def methodsRunTogether1(): Unit = ParallelLatches.awaitOthers(ParallelLatches.methods)
+  @Test def methodsRunTogether2(): Unit = ParallelLatches.awaitOthers(ParallelLatches.methods)
+}
@@ -0,0 +1,15 @@
+package scalarules.test.junit
+
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.Suite
+
+// Has no tests of its own, so it is sharded as a whole. Its tests are described with the name of
+// the member class, which is not discovered by itself.
+@RunWith(classOf[Suite])
+@Suite.SuiteClasses(Array(classOf[ShardedSuiteMember]))
+class ShardedSuiteTest
+
+class ShardedSuiteMember {
+  @Test def method1 { println(this.getClass.getName + "#method1") }
+}
@@ -0,0 +1,63 @@
+// In the package of ClassFileSummary, which is private to it
+package io.bazel.rulesscala.test_discovery
+
+import org.junit.Assert._
+import org.junit.Test
+
+class ClassFileSummaryTest {
+  private val fixtures = "scalarules/test/junit/discovery/fixtures/"
+  private val testAnnotation = "Lorg/junit/Test;"
+  private val runWithAnnotation = "Lorg/junit/runner/RunWith;"
+  private val taggedAnnotation = s"L${fixtures}Tagged;"
+
+  private def summaryOf(name: String): ClassFileSummary = {
+    val in = getClass.getClassLoader.getResourceAsStream(fixtures + name + ".class")
+    try ClassFileSummary.read(in) finally in.close()
+  }
+
+  @Test
+  def abstractBaseClassWithTests(): Unit = {
+    val summary = summaryOf("AbstractBaseTest")
+    assertTrue(summary.isAbstract)
+    assertEquals(Some("java/lang/Object"), summary.superName)
+    assertEquals(Set(testAnnotation), summary.methodAnnotations("inherited"))
+  }
+
+  @Test
+  def concreteSubclass(): Unit = {
+    val summary = summaryOf("ConcreteTest")
+    assertFalse(summary.isAbstract)
+    assertEquals(Some(fixtures + "AbstractBaseTest"), summary.superName)
+    assertEquals(Map("own" -> Set(testAnnotation)), summary.methodAnnotations)
+  }
+
+  @Test
+  def runWithOnSuperclass(): Unit = {
+    assertEquals(Set(runWithAnnotation), summaryOf("RunWithBase").annotations)
+    val summary = summaryOf("InheritsRunWithTest")
+    assertEquals(Some(fixtures + "RunWithBase"), summary.superName)
+    assertEquals(Set.empty, summary.annotations)
+  }
+
+  @Test
+  def interfacesAndTraitsAreAbstract(): Unit = {
+    val interface = summaryOf("InterfaceTest")
+    assertTrue(interface.isAbstract)
+    assertEquals(Set(testAnnotation), interface.methodAnnotations("fromInterface"))
+    assertTrue(summaryOf("TraitTest").isAbstract)
+  }
+
+  @Test
+  def longAndDoubleConstants(): Unit = {
+    val summary = summaryOf("ConstantsTest")
+    assertFalse(summary.isAbstract)
+    assertEquals(Map("afterConstants" -> Set(testAnnotation)), summary.methodAnnotations)
+  }
+
+  @Test
+  def nestedAnnotationValues(): Unit = {
+    val summary = summaryOf("NestedAnnotationsTest")
+    assertEquals(Set(taggedAnnotation), summary.annotations)
+    assertEquals(Set(taggedAnnotation, testAnnotation), summary.methodAnnotations("annotated"))
+  }
+}
@@ -0,0 +1,31 @@
+// In the package of TestClassScanner, which is private to it
+package io.bazel.rulesscala.test_discovery
+
+import java.nio.file.Paths
+import org.junit.Assert._
+import org.junit.Test
+
+class TestClassScannerTest {
+  private val fixtures = "scalarules.test.junit.discovery.fixtures."
+
+  // RunWithBase is in a jar of its own, which is not scanned, so it is read from the class loader
+  private def scan(): Map[String, Set[String]] = {
+    val archives = Seq("java.fixtures.jar.location", "scala.fixtures.jar.location")
+      .map(flag => Paths.get(System.getProperty("user.dir"), System.getProperty(flag)).toString)
+    new TestClassScanner(Set.empty, Set("Test"), getClass.getClassLoader)
+      .scan(archives)
+      .map(testClass => testClass.name.stripPrefix(fixtures) -> testClass.testMethods.toSet)
+      .toMap
+  }
+
+  @Test
+  def discoversConcreteTestClasses(): Unit = {
+    assertEquals(
+      Map(
+        "ConcreteTest" -> Set("own", "inherited"),
+        "InheritsRunWithTest" -> Set.empty[String],
+        "ConstantsTest" -> Set("afterConstants"),
+        "NestedAnnotationsTest" -> Set("annotated")),
+      scan())
+  }
+}
@@ -0,0 +1,8 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import org.junit.Test;
+
+public abstract class AbstractBaseTest {
+  @Test
+  public void inherited() {}
+}
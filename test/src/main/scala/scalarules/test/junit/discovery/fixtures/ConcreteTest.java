@@ -0,0 +1,8 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import org.junit.Test;
+
+public class ConcreteTest extends AbstractBaseTest {
+  @Test
+  public void own() {}
+}
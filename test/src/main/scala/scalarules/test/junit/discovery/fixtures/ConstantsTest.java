@@ -0,0 +1,12 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import org.junit.Test;
+
+public class ConstantsTest {
+  // Longs and doubles take up two entries of the constant pool
+  public static final long LONG_CONSTANT = 1234567890123L;
+  public static final double DOUBLE_CONSTANT = 3.14159;
+
+  @Test
+  public void afterConstants() {}
+}
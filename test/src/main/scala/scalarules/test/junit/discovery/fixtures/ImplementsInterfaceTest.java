@@ -0,0 +1,6 @@
+package scalarules.test.junit.discovery.fixtures;
+
+public class ImplementsInterfaceTest implements InterfaceTest {
+  @Override
+  public void fromInterface() {}
+}
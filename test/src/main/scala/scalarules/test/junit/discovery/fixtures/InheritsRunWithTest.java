@@ -0,0 +1,3 @@
+package scalarules.test.junit.discovery.fixtures;
+
+public class InheritsRunWithTest extends RunWithBase {}
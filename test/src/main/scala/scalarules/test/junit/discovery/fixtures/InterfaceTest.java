@@ -0,0 +1,8 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import org.junit.Test;
+
+public interface InterfaceTest {
+  @Test
+  void fromInterface();
+}
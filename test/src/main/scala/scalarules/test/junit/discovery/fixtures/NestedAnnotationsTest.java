@@ -0,0 +1,13 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import java.lang.annotation.ElementType;
+import org.junit.Test;
+
+@Tagged(
+    value = {@Tag(name = "type", targets = {ElementType.TYPE, ElementType.METHOD})},
+    type = String.class)
+public class NestedAnnotationsTest {
+  @Tagged(value = @Tag(name = "method", targets = {}), type = int.class)
+  @Test
+  public void annotated() {}
+}
@@ -0,0 +1,7 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public abstract class RunWithBase {}
@@ -0,0 +1,12 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Tag {
+  String name();
+
+  ElementType[] targets();
+}
@@ -0,0 +1,11 @@
+package scalarules.test.junit.discovery.fixtures;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Tagged {
+  Tag[] value();
+
+  Class<?> type();
+}
@@ -0,0 +1,8 @@
+package scalarules.test.junit.discovery.fixtures
+
+import org.junit.Test
+
+trait TraitTest {
+  @Test
+  def fromTrait(): Unit = ()
+}
@@ -0,0 +1,93 @@
+package scalarules.test.twitter_scrooge
+
+import io.bazel.rules_scala.scrooge_support.Compiler
+import java.io.FileOutputStream
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Path}
+import java.util.zip.{ZipEntry, ZipOutputStream}
+import org.junit.Assert._
+import org.junit.Test
+import scala.collection.JavaConverters._
+
+class CompilerPoolTest {
+  private val tmp = Files.createTempDirectory("compiler-pool-test")
+
+  private def zip(name: String, files: (String, String)*): Path = {
+    val path = tmp.resolve(name)
+    val out = new ZipOutputStream(new FileOutputStream(path.toFile))
+    try files.foreach { case (entry, content) =>
+      out.putNextEntry(new ZipEntry(entry))
+      out.write(content.getBytes(UTF_8))
+      out.closeEntry()
+    } finally out.close()
+    path
+  }
+
+  private val includes = zip(
+    "includes.jar",
+    "pool/include.thrift" ->
+      """namespace scala scalarules.test.pool
+        |struct Shared { 1: string name }
+        |""".stripMargin)
+
+  private def including(struct: String) =
+    s"""namespace scala scalarules.test.pool
+       |include "include.thrift"
+       |struct $struct { 1: include.Shared shared }
+       |""".stripMargin
+
+  // dup1 and dup2 both generate Dup.scala, which is then taken from dup2 as the later input
+  private val inputNames = Seq("a", "b", "c", "d", "dup1", "dup2")
+  private val inputs = zip(
+    "inputs.jar",
+    "pool/a.thrift" -> including("A"),
+    "pool/b.thrift" -> including("B"),
+    "pool/c.thrift" -> including("C"),
+    "pool/d.thrift" -> including("D"),
+    "pool/dup1.thrift" ->
+      """namespace scala scalarules.test.pool.dup
+        |struct Dup { 1: string first }
+        |""".stripMargin,
+    "pool/dup2.thrift" ->
+      """namespace scala scalarules.test.pool.dup
+        |struct Dup { 1: string second }
+        |""".stripMargin)
+
+  private def generate(run: Int): (Path, Seq[String]) = {
+    val dest = tmp.resolve(s"out$run")
+    val fileMap = tmp.resolve(s"map$run.txt")
+    val compiler = new Compiler
+    compiler.includeJars += includes.toString
+    compiler.compileJars += inputs.toString
+    compiler.destFolder = dest.toString
+    compiler.fileMapPath = Some(fileMap.toString)
+    compiler.strict = false
+    compiler.run()
+    (dest, Files.readAllLines(fileMap, UTF_8).asScala)
+  }
+
+  @Test
+  def generatesInputsWithSharedIncludesInParallel(): Unit = {
+    (1 to 10).foreach { run =>
+      val (dest, fileMap) = generate(run)
+      val pool = dest.resolve("scalarules/test/pool")
+      Seq("A", "B", "C", "D").foreach { struct =>
+        assertTrue(s"$struct.scala in run $run", Files.exists(pool.resolve(s"$struct.scala")))
+      }
+      val dup = new String(Files.readAllBytes(pool.resolve("dup/Dup.scala")), UTF_8)
+      assertTrue(s"Dup.scala from dup2 in run $run", dup.contains("second"))
+      assertFalse(s"Dup.scala from dup2 in run $run", dup.contains("first"))
+
+      assertEquals(
+        inputNames.map(name => s"pool/$name.thrift"),
+        fileMap.map(_.split(" -> ")(0)).distinct)
+      fileMap.foreach { line =>
+        assertTrue(line, Files.exists(dest.getFileSystem.getPath(line.split(" -> ")(1))))
+      }
+      // Only the merged files are left in the output
+      assertEquals(
+        Seq("scalarules"),
+        Files.list(dest).iterator.asScala.map(_.getFileName.toString).toSeq)
+    }
+  }
+}
@@ -0,0 +1,10 @@
+package test_expect_failure.compile_cache;
+
+object A {
+	def foo = {
+		B.foo
+		C.foo
+	}
+
+	def main = foo
+}
\ No newline at end of file
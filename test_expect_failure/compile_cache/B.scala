@@ -0,0 +1,9 @@
+package test_expect_failure.compile_cache;
+
+object B {
+	def foo = {
+		C.foo
+	}
+
+	def main = foo
+}
\ No newline at end of file
@@ -0,0 +1,7 @@
+package test_expect_failure.compile_cache;
+
+object C {
+	def foo = {
+		println("in C")
+	}
+}
\ No newline at end of file
@@ -0,0 +1,5 @@
+package test_expect_failure.resident_compiler.created
+
+object Created {
+  def value: Int = test_expect_failure.resident_compiler.Shadowed.fromClasspath
+}
@@ -0,0 +1,5 @@
+package test_expect_failure.resident_compiler.reuse
+
+object ReusesGlobal {
+  def value: Int = test_expect_failure.resident_compiler.Shadowed.fromClasspath
+}
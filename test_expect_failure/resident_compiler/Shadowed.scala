@@ -0,0 +1,5 @@
+package test_expect_failure.resident_compiler
+
+object Shadowed {
+  def fromClasspath: Int = 1
+}
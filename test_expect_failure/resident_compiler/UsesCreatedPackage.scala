@@ -0,0 +1,5 @@
+package test_expect_failure.resident_compiler.user
+
+object UsesCreatedPackage {
+  def value: Int = test_expect_failure.resident_compiler.created.Created.value
+}
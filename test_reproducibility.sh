@@ -25,11 +25,17 @@ test_build_is_identical() {
     diff hash1 hash2
 }
 
+test_parallel_compression_is_identical() {
+    bazel build //test:ParallelCompressedJar //test:SerialCompressedJar
+    cmp bazel-bin/test/ParallelCompressedJar.jar bazel-bin/test/SerialCompressedJar.jar
+}
+
 dir=$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )
 # shellcheck source=./test_runner.sh
 . "${dir}"/test_runner.sh
 runner=$(get_test_runner "${1:-local}")
 
+$runner test_parallel_compression_is_identical
 
 # This test is last/separate since it compares the current outputs to new ones to make sure they're identical
 # If it runs before some of the above (like jmh) the "current" output in CI might be too close in time to the "new" one
@@ -239,6 +239,17 @@ test_benchmark_jmh() {
   exit $RESPONSE_CODE
 }
 
+test_toolchain_benchmark_jmh() {
+  # Only the smallest sizes, this checks that the benchmarks run rather than how fast
+  RES=$(bazel run -- test/jmh:toolchain_benchmark -i1 -f1 -wi 1 -p entries=1000 -p classpathEntries=1000)
+  RESPONSE_CODE=$?
+  if [[ $RES != *Result*Benchmark* ]]; then
+    echo "Benchmark did not produce expected output:\n$RES"
+    exit 1
+  fi
+  exit $RESPONSE_CODE
+}
+
 test_multi_service_manifest() {
   deploy_jar='ScalaBinary_with_service_manifest_srcs_deploy.jar'
   meta_file='META-INF/services/org.apache.beam.sdk.io.FileSystemRegistrar'
@@ -320,6 +331,38 @@ multiple_junit_patterns() {
   fi
 }
 
+discovered_classes_in_log() {
+  awk '/^Discovered classes:/ { listing = 1; next }
+       listing && /^scalarules\./ { print; next }
+       { listing = 0 }' "$1"
+}
+
+junit_discovery_index_matches_runtime_scan() {
+  bazel test --nocache_test_results //test:JunitDiscoveryFromIndex //test:JunitDiscoveryAtRuntime
+  local indexed=$(cut -f1 bazel-bin/test/JunitDiscoveryFromIndex_test_discovery_index)
+  local expected=$(printf '%s\n' \
+      "scalarules.test.junit.SingleTestSoTargetWillNotFailDueToNoTestsTest" \
+      "scalarules.test.junit.ConcreteImplementationTest" | sort)
+  if [ "$(sort <<<"$indexed")" != "$expected" ]; then
+    echo "Expected the index to hold:"
+    echo "$expected"
+    echo "but it held:"
+    echo "$indexed"
+    exit 1
+  fi
+  local from_index=$(discovered_classes_in_log ./bazel-testlogs/test/JunitDiscoveryFromIndex/test.log)
+  local at_runtime=$(discovered_classes_in_log ./bazel-testlogs/test/JunitDiscoveryAtRuntime/test.log)
+  if [ "$from_index" != "$indexed" ] || [ "$at_runtime" != "$indexed" ]; then
+    echo "Expected the classes read from the index and scanned at runtime to be:"
+    echo "$indexed"
+    echo "but they were:"
+    echo "$from_index"
+    echo "and:"
+    echo "$at_runtime"
+    exit 1
+  fi
+}
+
 junit_generates_xml_logs() {
   bazel test //test:JunitTestWithDeps
   matches=$(grep -c -e "testcase name='hasCompileTimeDependencies'" -e "testcase name='hasRuntimeDependencies'" ./bazel-testlogs/test/JunitTestWithDeps/test.xml)
@@ -418,6 +461,47 @@ scala_junit_test_test_filter(){
   done
 }
 
+scala_junit_test_sharding(){
+  bazel test --nocache_test_results test:JunitShardedTest
+  local tests="ShardedSuiteMember#method1"
+  for class in First Second Third; do
+    for method in method1 method2 method3; do
+      tests="$tests ${class}FilterTest#${method}"
+    done
+  done
+  for test in $tests; do
+    local runs=$(cat ./bazel-testlogs/test/JunitShardedTest/shard_*_of_4/test.log | \
+      grep -c "scalarules.test.junit.${test}$")
+    if [ "$runs" -ne 1 ]; then
+      echo "Expected ${test} to run in exactly one shard, but it ran in $runs"
+      exit 1
+    fi
+  done
+}
+
+scala_junit_test_parallel(){
+  # the tests themselves fail when they don't run at the same time
+  bazel test --nocache_test_results test:JunitParallelTest
+  local discovered=$(cut -f1 bazel-bin/test/JunitParallelTest_test_discovery_index)
+  local test_xml=./bazel-testlogs/test/JunitParallelTest/test.xml
+  local suites=$(grep -o "<testsuite name='[^']*'" $test_xml | cut -d"'" -f2)
+  if [ "$suites" != "$discovered" ]; then
+    echo "Expected a test suite per class in test.xml, in the order they were discovered:"
+    echo "$discovered"
+    echo "but found:"
+    echo "$suites"
+    exit 1
+  fi
+  # every test case is reported in the suite of its class
+  local misplaced=$(grep -o -e "<testsuite name='[^']*'" -e "<testcase [^>]*classname='[^']*'" $test_xml | \
+    awk -F"'" '/^<testsuite/ { suite = $2; next } $(NF-1) != suite { print }')
+  if [ -n "$misplaced" ]; then
+    echo "Found test cases outside the suite of their class:"
+    echo "$misplaced"
+    exit 1
+  fi
+}
+
 scala_junit_test_test_filter_custom_runner(){
   bazel test \
     --nocache_test_results \
@@ -728,6 +812,131 @@ revert_change() {
   mv $1/$2.bak $1/$2
 }
 
+compile_cache_build_command() {
+  echo "bazel build //test_expect_failure/compile_cache:user --strict_java_deps=error" \
+    "--strategy=Scalac=worker" \
+    "--worker_extra_flag=Scalac=--jvm_flag=-Dio.bazel.rulesscala.scalac.compile_cache=$1"
+}
+
+test_compile_cache_misses_on_changed_direct_deps() {
+  set +e
+  compile_cache_path="test_expect_failure/compile_cache"
+  cache_dir=$(mktemp -d)
+  trap "rm -rf $cache_dir" EXIT
+  build_command=$(compile_cache_build_command $cache_dir)
+
+  echo "running initial build"
+  $build_command
+  if [ $? -ne 0 ]; then
+    echo "initial build of //$compile_cache_path:user should have succeeded."
+    exit 1
+  fi
+  echo "making transitive_dependency a transitive dependency of user only"
+  sed -i.bak "/^        \"transitive_dependency\",$/d" ./$compile_cache_path/BUILD
+
+  echo "running second build"
+  output=$(${build_command} 2>&1)
+  status_code=$?
+  revert_change $compile_cache_path BUILD
+
+  echo "$output"
+  if [ $status_code -eq 0 ]; then
+    echo "build with a dependency that is no longer direct was served from the compile cache."
+    exit 1
+  fi
+  echo ${output} | grep "buildozer 'add deps //$compile_cache_path:transitive_dependency'"
+  if [ $? -ne 0 ]; then
+    echo "'$build_command' should have reported the missing direct dependency."
+    exit 1
+  fi
+  set -e
+}
+
+test_compile_cache_hits_on_unchanged_inputs() {
+  set +e
+  outputs="bazel-bin/test_expect_failure/compile_cache"
+  cache_dir=$(mktemp -d)
+  trap "rm -rf $cache_dir" EXIT
+  build_command=$(compile_cache_build_command $cache_dir)
+
+  echo "running initial build"
+  $build_command
+  if [ $? -ne 0 ]; then
+    echo "initial build of //test_expect_failure/compile_cache:user should have succeeded."
+    exit 1
+  fi
+  cp $outputs/user.jar $cache_dir/first_build.jar
+
+  echo "removing the outputs, so that bazel compiles user again"
+  rm -f $outputs/user.jar $outputs/user.statsfile
+  $build_command
+  if [ $? -ne 0 ]; then
+    echo "second build of //test_expect_failure/compile_cache:user should have succeeded."
+    exit 1
+  fi
+  grep "^compile_cache=hit$" $outputs/user.statsfile
+  if [ $? -ne 0 ]; then
+    echo "second build of an unchanged target was not served from the compile cache."
+    cat $outputs/user.statsfile
+    exit 1
+  fi
+  cmp $cache_dir/first_build.jar $outputs/user.jar
+  if [ $? -ne 0 ]; then
+    echo "jar served from the compile cache differs from the one it was compiled to."
+    exit 1
+  fi
+  set -e
+}
+
+test_resident_compiler_forgets_sources() {
+  set +e
+  resident_path="test_expect_failure/resident_compiler"
+  outputs="bazel-bin/$resident_path"
+  # A single worker, so that every target is compiled by the same one
+  build_command="bazel build --strategy=Scalac=worker --worker_max_instances=1 \
+    --worker_extra_flag=Scalac=--jvm_flag=-Dio.bazel.rulesscala.scalac.resident_compiler=true"
+
+  echo "removing earlier outputs, so that every target is compiled again"
+  rm -f $outputs/*.jar $outputs/*.statsfile
+
+  $build_command //$resident_path:dependency //$resident_path:shadowing
+  if [ $? -ne 0 ]; then
+    echo "//$resident_path:shadowing should have built."
+    exit 1
+  fi
+  $build_command //$resident_path:uses_classpath
+  if [ $? -ne 0 ]; then
+    echo "//$resident_path:uses_classpath did not find the classpath class shadowed by a source" \
+      "of the previous compile."
+    exit 1
+  fi
+
+  $build_command //$resident_path:creates_package
+  if [ $? -ne 0 ]; then
+    echo "//$resident_path:creates_package should have built."
+    exit 1
+  fi
+  $build_command //$resident_path:reuses_global
+  grep "^resident_compiler=hit$" $outputs/reuses_global.statsfile
+  if [ $? -ne 0 ]; then
+    echo "//$resident_path:reuses_global was not compiled by the Global of the previous compile."
+    exit 1
+  fi
+  output=$($build_command //$resident_path:uses_created_package 2>&1)
+  if [ $? -eq 0 ]; then
+    echo "$output"
+    echo "//$resident_path:uses_created_package found a class from the sources of another target."
+    exit 1
+  fi
+  echo "$output" | grep "object created is not a member of package test_expect_failure.resident_compiler"
+  if [ $? -ne 0 ]; then
+    echo "$output"
+    echo "the package created by the sources of another target was left entered."
+    exit 1
+  fi
+  set -e
+}
+
 test_scala_import_expect_failure_on_missing_direct_deps_warn_mode() {
   dependency_target1='//test_expect_failure/scala_import:cats'
   dependency_target2='//test_expect_failure/scala_import:guava'
@@ -826,12 +1035,14 @@ $runner test_transitive_deps
 $runner test_scala_library_suite
 $runner test_repl
 $runner test_benchmark_jmh
+$runner test_toolchain_benchmark_jmh
 $runner multiple_junit_suffixes
 $runner multiple_junit_prefixes
 $runner test_scala_junit_test_can_fail
 $runner junit_generates_xml_logs
 $runner scala_library_jar_without_srcs_must_fail_on_mismatching_resource_strip_prefix
 $runner multiple_junit_patterns
+$runner junit_discovery_index_matches_runtime_scan
 $runner test_junit_test_must_have_prefix_or_suffix
 $runner test_junit_test_errors_when_no_tests_found
 $runner scala_library_jar_without_srcs_must_include_direct_file_resources
@@ -839,6 +1050,8 @@ $runner scala_library_jar_without_srcs_must_include_filegroup_resources
 $runner scala_test_test_filters
 $runner scala_junit_test_test_filter
 $runner scala_junit_test_test_filter_custom_runner
+$runner scala_junit_test_sharding
+$runner scala_junit_test_parallel
 $runner scala_specs2_junit_test_test_filter_everything
 $runner scala_specs2_junit_test_test_filter_one_test
 $runner scala_specs2_junit_test_test_filter_whole_spec
@@ -869,6 +1082,9 @@ $runner test_multi_service_manifest
 $runner test_scala_library_expect_no_recompilation_on_internal_change_of_scala_dependency
 $runner test_scala_library_expect_no_recompilation_on_internal_change_of_java_dependency
 $runner test_scala_library_expect_no_java_recompilation_on_internal_change_of_scala_sibling
+$runner test_compile_cache_misses_on_changed_direct_deps
+$runner test_compile_cache_hits_on_unchanged_inputs
+$runner test_resident_compiler_forgets_sources
 $runner test_scala_library_expect_failure_on_missing_direct_java
 $runner test_scala_library_expect_failure_on_java_in_src_jar_when_disabled
 $runner test_scala_library_expect_failure_on_missing_direct_deps_warn_mode_java
@@ -1,8 +1,10 @@
 package third_party.dependency_analyzer.src.main.io.bazel.rulesscala.dependencyanalyzer
 
+import scala.collection.JavaConverters._
 import scala.reflect.io.AbstractFile
 import scala.tools.nsc.plugins.{Plugin, PluginComponent}
 import scala.tools.nsc.{Global, Phase}
+import third_party.utils.src.main.io.bazel.rulesscala.utils.{DependencyMap, UsedJarsFinder}
 
 class DependencyAnalyzer(val global: Global) extends Plugin {
 
@@ -12,17 +14,23 @@ class DependencyAnalyzer(val global: Global) extends Plugin {
       "if they are not explicitly used as direct dependencies (only declared transitively)"
   val components = List[PluginComponent](Component)
 
-  var indirect: Map[String, String] = Map.empty
-  var direct: Set[String] = Set.empty
+  var indirect: collection.Map[String, String] = Map.empty
+  var direct: collection.Set[String] = Set.empty
   var analyzerMode: String = "error"
   var currentTarget: String = "NA"
 
+  private val usedJarsFinder = new UsedJarsFinder(global)
+
   override def processOptions(options: List[String], error: (String) => Unit): Unit = {
     var indirectJars: Seq[String] = Seq.empty
     var indirectTargets: Seq[String] = Seq.empty
 
     for (option <- options) {
       option.split(":").toList match {
+        case "dependency-map" :: path =>
+          val dependencyMap = DependencyMap.read(path.mkString(":"))
+          direct = dependencyMap.direct.keySet.asScala
+          indirect = dependencyMap.indirect.asScala
         case "direct-jars" :: data => direct = data.toSet
         case "indirect-jars" :: data => indirectJars = data;
         case "indirect-targets" :: data => indirectTargets = data.map(_.replace(";", ":"))
@@ -32,7 +40,9 @@ class DependencyAnalyzer(val global: Global) extends Plugin {
         case Nil =>
       }
     }
-    indirect = indirectJars.zip(indirectTargets).toMap
+    if (indirectJars.nonEmpty) {
+      indirect = indirectJars.zip(indirectTargets).toMap
+    }
   }
 
 
@@ -42,7 +52,7 @@ class DependencyAnalyzer(val global: Global) extends Plugin {
 
     import global._
 
-    override val runsAfter = List("jvm")
+    override val runsAfter = List("typer")
 
     val phaseName = DependencyAnalyzer.this.name
 
@@ -51,7 +61,7 @@ class DependencyAnalyzer(val global: Global) extends Plugin {
 
         super.run()
 
-        val usedJars = findUsedJars
+        val usedJars = usedJarsFinder.findUsedJars
 
         warnOnIndirectTargetsFoundIn(usedJars)
       }
@@ -76,35 +86,4 @@ class DependencyAnalyzer(val global: Global) extends Plugin {
     }
 
   }
-
-  import global._
-
-  private def findUsedJars: Set[AbstractFile] = {
-    val jars = collection.mutable.Set[AbstractFile]()
-
-    def walkTopLevels(root: Symbol): Unit = {
-      def safeInfo(sym: Symbol): Type =
-        if (sym.hasRawInfo && sym.rawInfo.isComplete) sym.info else NoType
-
-      def packageClassOrSelf(sym: Symbol): Symbol =
-        if (sym.hasPackageFlag && !sym.isModuleClass) sym.moduleClass else sym
-
-      for (x <- safeInfo(packageClassOrSelf(root)).decls) {
-        if (x == root) ()
-        else if (x.hasPackageFlag) walkTopLevels(x)
-        else if (x.owner != root) { // exclude package class members
-          if (x.hasRawInfo && x.rawInfo.isComplete) {
-            val assocFile = x.associatedFile
-            if (assocFile.path.endsWith(".class") && assocFile.underlyingSource.isDefined)
-              assocFile.underlyingSource.foreach(jars += _)
-          }
-        }
-      }
-    }
-
-    exitingTyper {
-      walkTopLevels(RootClass)
-    }
-    jars.toSet
-  }
 }
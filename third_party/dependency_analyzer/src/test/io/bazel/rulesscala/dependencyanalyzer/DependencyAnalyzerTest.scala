@@ -3,7 +3,8 @@ package third_party.dependency_analyzer.src.test.io.bazel.rulesscala.dependencya
 import org.junit.Test
 import org.junit.runner.RunWith
 import org.junit.runners.JUnit4
-import java.nio.file.Paths
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Paths}
 
 import third_party.utils.src.test.io.bazel.rulesscala.utils.TestUtil._
 
@@ -11,7 +12,7 @@ import third_party.utils.src.test.io.bazel.rulesscala.utils.TestUtil._
 class DependencyAnalyzerTest {
   val pluginName = "dependency_analyzer"
 
-  def compileWithDependencyAnalyzer(code: String, withDirect: List[String] = Nil, withIndirect: List[(String, String)] = Nil): List[String] = {
+  def compileWithDependencyAnalyzer(code: String, withDirect: List[String] = Nil, withIndirect: List[(String, String)] = Nil, useDependencyMap: Boolean = false): List[String] = {
     val toolboxPluginOptions: String = {
       val jar = System.getProperty(s"plugin.jar.location")
       val start= jar.indexOf(s"/third_party/$pluginName")
@@ -22,12 +23,24 @@ class DependencyAnalyzerTest {
     }
 
     val constructParam: (String, Iterable[String]) => String = constructPluginParam("dependency-analyzer")
-    val compileOptions = Seq(
-      constructParam("direct-jars", withDirect),
-      constructParam("indirect-jars", withIndirect.map(_._1)),
-      constructParam("indirect-targets", withIndirect.map(_._2)),
-      constructParam("current-target", Seq(defaultTarget))
-    ).mkString(" ")
+    val dependencyOptions =
+      if (useDependencyMap) {
+        val dependencyMap = Files.createTempFile("dependency_map", "")
+        dependencyMap.toFile.deleteOnExit()
+        val lines =
+          s"${withDirect.size}\t${withIndirect.size}" +:
+            (withDirect.map(jar => s"direct\t$jar\t$jar") ++
+              withIndirect.map { case (jar, target) => s"indirect\t$jar\t${decodeLabel(target)}" })
+        Files.write(dependencyMap, lines.mkString("", "\n", "\n").getBytes(UTF_8))
+        Seq(constructParam("dependency-map", Seq(dependencyMap.toString)))
+      } else {
+        Seq(
+          constructParam("direct-jars", withDirect),
+          constructParam("indirect-jars", withIndirect.map(_._1)),
+          constructParam("indirect-targets", withIndirect.map(_._2)))
+      }
+    val compileOptions =
+      (dependencyOptions :+ constructParam("current-target", Seq(defaultTarget))).mkString(" ")
 
     val extraClasspath = withDirect ++ withIndirect.map(_._1)
 
@@ -81,6 +94,64 @@ class DependencyAnalyzerTest {
     compileWithDependencyAnalyzer(testCode, withDirect = direct, withIndirect = indirect).noErrorOn(commonsTarget)
   }
 
+  @Test
+  def `error on indirect dependency target from dependency map`(): Unit = {
+    val testCode =
+      """object Foo {
+        |  org.apache.commons.lang3.ArrayUtils.EMPTY_BOOLEAN_ARRAY.length
+        |}
+      """.stripMargin
+
+    val commonsTarget = "//commons:Target"
+
+    val indirect = List(apacheCommonsClasspath -> commonsTarget)
+    compileWithDependencyAnalyzer(testCode, withIndirect = indirect, useDependencyMap = true).expectErrorOn(commonsTarget)
+  }
+
+  @Test
+  def `do not give error on direct dependency target from dependency map`(): Unit = {
+    val testCode =
+      """object Foo {
+        |  org.apache.commons.lang3.ArrayUtils.EMPTY_BOOLEAN_ARRAY.length
+        |}
+      """.stripMargin
+
+    val commonsTarget = "commonsTarget"
+
+    val direct = List(apacheCommonsClasspath)
+    val indirect = List(apacheCommonsClasspath -> commonsTarget)
+    compileWithDependencyAnalyzer(testCode, withDirect = direct, withIndirect = indirect, useDependencyMap = true).noErrorOn(commonsTarget)
+  }
+
+  @Test
+  def `error on indirect dependency target only used for a constant`(): Unit = {
+    val testCode =
+      """object Foo {
+        |  val empty = org.apache.commons.lang3.StringUtils.EMPTY
+        |}
+      """.stripMargin
+
+    val commonsTarget = "commonsTarget"
+
+    val indirect = List(apacheCommonsClasspath -> commonsTarget)
+    compileWithDependencyAnalyzer(testCode, withIndirect = indirect).expectErrorOn(commonsTarget)
+  }
+
+  @Test
+  def `error on indirect dependency target only used as the parent of a used class`(): Unit = {
+    val testCode =
+      """object Foo {
+        |  new third_party.utils.src.test.io.bazel.rulesscala.utils.fixtures.Derived
+        |}
+      """.stripMargin
+
+    val baseTarget = "baseTarget"
+
+    val direct = List(fixtureDerivedClasspath)
+    val indirect = List(fixtureBaseClasspath -> baseTarget)
+    compileWithDependencyAnalyzer(testCode, withDirect = direct, withIndirect = indirect).expectErrorOn(baseTarget)
+  }
+
   implicit class `nice errors on sequence of strings`(infos: Seq[String]) {
 
     private def checkErrorContainsMessage(target: String) = { info: String =>
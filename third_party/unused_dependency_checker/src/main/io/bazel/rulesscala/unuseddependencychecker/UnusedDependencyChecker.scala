@@ -1,8 +1,10 @@
 package third_party.unused_dependency_checker.src.main.io.bazel.rulesscala.unused_dependency_checker
 
+import scala.collection.JavaConverters._
 import scala.reflect.io.AbstractFile
 import scala.tools.nsc.plugins.{Plugin, PluginComponent}
 import scala.tools.nsc.{Global, Phase}
+import third_party.utils.src.main.io.bazel.rulesscala.utils.{DependencyMap, UsedJarsFinder}
 import UnusedDependencyChecker._
 
 class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
@@ -11,17 +13,20 @@ class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
 
   val components: List[PluginComponent] = List[PluginComponent](Component)
 
-  var direct: Map[String, String] = Map.empty
+  var direct: collection.Map[String, String] = Map.empty
   var ignoredTargets: Set[String] = Set.empty
   var analyzerMode: AnalyzerMode = Error
   var currentTarget: String = "NA"
 
+  private val usedJarsFinder = new UsedJarsFinder(global)
+
   override def init(options: List[String], error: (String) => Unit): Boolean = {
     var directJars: Seq[String] = Seq.empty
     var directTargets: Seq[String] = Seq.empty
 
     for (option <- options) {
       option.split(":").toList match {
+        case "dependency-map" :: path => direct = DependencyMap.read(path.mkString(":")).direct.asScala
         case "direct-jars" :: data => directJars = data.map(decodeTarget)
         case "direct-targets" :: data => directTargets = data.map(decodeTarget)
         case "ignored-targets" :: data => ignoredTargets = data.map(decodeTarget).toSet
@@ -32,7 +37,9 @@ class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
       }
     }
 
-    direct = directJars.zip(directTargets).toMap
+    if (directJars.nonEmpty) {
+      direct = directJars.zip(directTargets).toMap
+    }
 
     true
   }
@@ -43,7 +50,7 @@ class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
 
     import global._
 
-    override val runsAfter = List("jvm")
+    override val runsAfter = List("typer")
 
     val phaseName: String = self.name
 
@@ -64,7 +71,7 @@ class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
       }
 
       private def unusedDependenciesFound: Set[String] = {
-        val usedJars: Set[AbstractFile] = findUsedJars
+        val usedJars: Set[AbstractFile] = usedJarsFinder.findUsedJars
         val directJarPaths = direct.keys.toSet
         val usedJarPaths = usedJars.map(_.path)
 
@@ -91,35 +98,6 @@ class UnusedDependencyChecker(val global: Global) extends Plugin { self =>
 
       override def apply(unit: CompilationUnit): Unit = ()
     }
-
-    def findUsedJars: Set[AbstractFile] = {
-      val jars = collection.mutable.Set[AbstractFile]()
-
-      def walkTopLevels(root: Symbol): Unit = {
-        def safeInfo(sym: Symbol): Type =
-          if (sym.hasRawInfo && sym.rawInfo.isComplete) sym.info else NoType
-
-        def packageClassOrSelf(sym: Symbol): Symbol =
-          if (sym.hasPackageFlag && !sym.isModuleClass) sym.moduleClass else sym
-
-        for (x <- safeInfo(packageClassOrSelf(root)).decls) {
-          if (x == root) ()
-          else if (x.hasPackageFlag) walkTopLevels(x)
-          else if (x.owner != root) { // exclude package class members
-            if (x.hasRawInfo && x.rawInfo.isComplete) {
-              val assocFile = x.associatedFile
-              if (assocFile.path.endsWith(".class") && assocFile.underlyingSource.isDefined)
-                assocFile.underlyingSource.foreach(jars += _)
-            }
-          }
-        }
-      }
-
-      exitingTyper {
-        walkTopLevels(RootClass)
-      }
-      jars.toSet
-    }
   }
 
 }
@@ -1,12 +1,13 @@
 package third_party.unused_dependency_checker.src.test.io.bazel.rulesscala.dependencyanalyzer
 
-import java.nio.file.Paths
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Paths}
 
 import org.scalatest._
 import third_party.utils.src.test.io.bazel.rulesscala.utils.TestUtil._
 
 class UnusedDependencyCheckerTest extends FunSuite {
-  def compileWithUnusedDependencyChecker(code: String, withDirect: List[(String, String)] = Nil): List[String] = {
+  def compileWithUnusedDependencyChecker(code: String, withDirect: List[(String, String)] = Nil, withIndirect: List[(String, String)] = Nil, useDependencyMap: Boolean = false): List[String] = {
     val toolboxPluginOptions: String = {
       val jar = System.getProperty("plugin.jar.location")
       val start = jar.indexOf("/third_party/unused_dependency_checker")
@@ -17,13 +18,25 @@ class UnusedDependencyCheckerTest extends FunSuite {
     }
 
     val constructParam: (String, Iterable[String]) => String = constructPluginParam("unused-dependency-checker")
-    val compileOptions = List(
-      constructParam("direct-jars", withDirect.map(_._1)),
-      constructParam("direct-targets", withDirect.map(_._2)),
-      constructParam("current-target", Seq(defaultTarget))
-    ).mkString(" ")
+    val dependencyOptions =
+      if (useDependencyMap) {
+        val dependencyMap = Files.createTempFile("dependency_map", "")
+        dependencyMap.toFile.deleteOnExit()
+        val lines =
+          s"${withDirect.size}\t${withIndirect.size}" +:
+            (withDirect.map { case (jar, target) => s"direct\t$jar\t${decodeLabel(target)}" } ++
+              withIndirect.map { case (jar, target) => s"indirect\t$jar\t${decodeLabel(target)}" })
+        Files.write(dependencyMap, lines.mkString("", "\n", "\n").getBytes(UTF_8))
+        Seq(constructParam("dependency-map", Seq(dependencyMap.toString)))
+      } else {
+        Seq(
+          constructParam("direct-jars", withDirect.map(_._1)),
+          constructParam("direct-targets", withDirect.map(_._2)))
+      }
+    val compileOptions =
+      (dependencyOptions :+ constructParam("current-target", Seq(defaultTarget))).mkString(" ")
 
-    val extraClasspath = withDirect.map(_._1)
+    val extraClasspath = withDirect.map(_._1) ++ withIndirect.map(_._1)
 
     runCompiler(code, compileOptions, extraClasspath, toolboxPluginOptions)
   }
@@ -59,4 +72,88 @@ class UnusedDependencyCheckerTest extends FunSuite {
     val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct)
     assert(errorMessages.isEmpty)
   }
+
+  test("error on unused direct dependencies from dependency map") {
+    val testCode =
+      """object Foo {
+        |}
+      """.stripMargin
+
+    val commonsTarget = "//commons:Target"
+
+    val direct = List(apacheCommonsClasspath -> encodeLabel(commonsTarget))
+    val errorMesssages = compileWithUnusedDependencyChecker(testCode, withDirect = direct, useDependencyMap = true)
+
+    assert(errorMesssages.exists { msg =>
+      msg.contains(commonsTarget) &&
+        msg.contains(s"buildozer 'remove deps $commonsTarget' $defaultTarget")
+    })
+  }
+
+  test("do not error on used direct dependencies or indirect dependencies from dependency map") {
+    val testCode =
+      """object Foo {
+        |  org.apache.commons.lang3.ArrayUtils.EMPTY_BOOLEAN_ARRAY.length
+        |}
+      """.stripMargin
+
+    val direct = List(apacheCommonsClasspath -> "commonsTarget")
+    val indirect = List(guavaClasspath -> "guavaTarget")
+
+    val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct, withIndirect = indirect, useDependencyMap = true)
+    assert(errorMessages.isEmpty)
+  }
+
+  test("do not error on direct dependencies only used for a constant") {
+    val testCode =
+      """object Foo {
+        |  val empty = org.apache.commons.lang3.StringUtils.EMPTY
+        |}
+      """.stripMargin
+
+    val direct = List(apacheCommonsClasspath -> "commonsTarget")
+
+    val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct)
+    assert(errorMessages.isEmpty)
+  }
+
+  test("do not error on direct dependencies only used for an annotation") {
+    val testCode =
+      """object Foo {
+        |  @com.google.common.annotations.VisibleForTesting
+        |  def foo = 1
+        |}
+      """.stripMargin
+
+    val direct = List(guavaClasspath -> "guavaTarget")
+
+    val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct)
+    assert(errorMessages.isEmpty)
+  }
+
+  test("do not error on direct dependencies only used for a macro") {
+    val testCode =
+      """object Foo {
+        |  val answer = third_party.utils.src.test.io.bazel.rulesscala.utils.fixtures.Macros.answer
+        |}
+      """.stripMargin
+
+    val direct = List(fixtureMacrosClasspath -> "macrosTarget")
+
+    val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct)
+    assert(errorMessages.isEmpty)
+  }
+
+  test("do not error on direct dependencies only used as the parent of a used class") {
+    val testCode =
+      """object Foo {
+        |  new third_party.utils.src.test.io.bazel.rulesscala.utils.fixtures.Derived
+        |}
+      """.stripMargin
+
+    val direct = List(fixtureDerivedClasspath -> "derivedTarget", fixtureBaseClasspath -> "baseTarget")
+
+    val errorMessages = compileWithUnusedDependencyChecker(testCode, withDirect = direct)
+    assert(errorMessages.isEmpty)
+  }
 }
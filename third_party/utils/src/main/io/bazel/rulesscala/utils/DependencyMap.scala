@@ -0,0 +1,36 @@
+package third_party.utils.src.main.io.bazel.rulesscala.utils
+
+import java.nio.charset.StandardCharsets.UTF_8
+import java.nio.file.{Files, Paths}
+
+/** The direct and indirect jars of a target, mapped to the targets they come from. */
+case class DependencyMap(
+    direct: java.util.Map[String, String], indirect: java.util.Map[String, String])
+
+object DependencyMap {
+  /**
+   * Reads the jar to target mappings written by the rules. The first line holds the number of
+   * direct and of indirect jars, followed by a "<direct|indirect>\t<jar>\t<target>" line per jar.
+   */
+  def read(path: String): DependencyMap = {
+    val reader = Files.newBufferedReader(Paths.get(path), UTF_8)
+    try {
+      val Array(directCount, indirectCount) = reader.readLine().split('\t').map(_.toInt)
+      val direct = new java.util.HashMap[String, String](capacityFor(directCount))
+      val indirect = new java.util.HashMap[String, String](capacityFor(indirectCount))
+      var line = reader.readLine()
+      while (line != null) {
+        val kindEnd = line.indexOf('\t')
+        val jarEnd = line.indexOf('\t', kindEnd + 1)
+        val jars = if (line.startsWith("direct\t")) direct else indirect
+        jars.put(line.substring(kindEnd + 1, jarEnd), line.substring(jarEnd + 1))
+        line = reader.readLine()
+      }
+      DependencyMap(direct, indirect)
+    } finally {
+      reader.close()
+    }
+  }
+
+  private def capacityFor(size: Int): Int = (size / 0.75f).toInt + 1
+}
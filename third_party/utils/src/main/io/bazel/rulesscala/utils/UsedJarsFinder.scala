@@ -0,0 +1,94 @@
+package third_party.utils.src.main.io.bazel.rulesscala.utils
+
+import scala.collection.mutable
+import scala.reflect.internal.Mode
+import scala.reflect.io.{AbstractFile, NoAbstractFile}
+import scala.tools.nsc.Global
+
+/**
+ * Finds the jars a run compiled against, from the symbols and types its typed trees refer to and
+ * the base classes of those. Only what the sources reference is looked at, rather than every
+ * symbol loaded from the classpath. It has to run right after typer, before the trees are erased.
+ *
+ * A finder is created once per Global, along with its plugin, since it hooks into typer.
+ */
+class UsedJarsFinder(val global: Global) {
+
+  import global._
+
+  // Typer folds references to constants into literals, which don't keep the constant's symbol.
+  // So the symbols are recorded as the references are typed, before they are folded.
+  private val constants = mutable.Set[Symbol]()
+
+  analyzer.addAnalyzerPlugin(new analyzer.AnalyzerPlugin {
+    override def isActive(): Boolean = !isPastTyper
+
+    override def pluginsTyped(
+        tpe: Type, typer: analyzer.Typer, tree: Tree, mode: Mode, pt: Type): Type = {
+      tpe match {
+        case ConstantType(_) if tree.hasSymbolField => constants += tree.symbol
+        case _ =>
+      }
+      tpe
+    }
+  })
+
+  def findUsedJars: Set[AbstractFile] = {
+    val jars = mutable.Set[AbstractFile]()
+    val seenSymbols = mutable.HashSet[Symbol]()
+    val seenTopLevels = mutable.HashSet[Symbol]()
+
+    def addSymbol(sym: Symbol): Unit =
+      if (sym != null && sym != NoSymbol && !sym.hasPackageFlag && seenSymbols.add(sym)) {
+        val topLevel = sym.enclosingTopLevelClass
+        if (topLevel != NoSymbol && seenTopLevels.add(topLevel)) {
+          jarOf(topLevel).foreach(jars += _)
+          // A class can only be compiled against along with all of its parents
+          topLevel.baseClasses.foreach(addSymbol)
+        }
+      }
+
+    def addType(tpe: Type): Unit =
+      tpe.foreach { t =>
+        addSymbol(t.typeSymbolDirect)
+        addSymbol(t.typeSymbol)
+        addSymbol(t.termSymbol)
+      }
+
+    val traverser = new Traverser {
+      override def traverse(tree: Tree): Unit = {
+        if (tree.hasSymbolField) {
+          addSymbol(tree.symbol)
+          if (tree.isInstanceOf[MemberDef]) {
+            tree.symbol.annotations.foreach(annotation => addType(annotation.atp))
+          }
+        }
+        if (tree.tpe != null) {
+          addType(tree.tpe)
+        }
+        tree match {
+          case typeTree: TypeTree if typeTree.original != null => traverse(typeTree.original)
+          case _ =>
+        }
+        val expandee = analyzer.macroExpandee(tree)
+        if (expandee != EmptyTree) {
+          traverse(expandee)
+        }
+        super.traverse(tree)
+      }
+    }
+    currentRun.units.foreach(unit => traverser.traverse(unit.body))
+    constants.foreach(addSymbol)
+    constants.clear()
+
+    jars.toSet
+  }
+
+  // The class file is recorded on whichever of a class and its companion was loaded first
+  private def jarOf(topLevel: Symbol): Option[AbstractFile] =
+    Iterator(topLevel, topLevel.companionClass, topLevel.companionModule.moduleClass)
+      .filter(_ != NoSymbol)
+      .map(_.associatedFile)
+      .find(file => file != NoAbstractFile && file.path.endsWith(".class"))
+      .flatMap(_.underlyingSource)
+}
@@ -64,6 +64,15 @@ object TestUtil {
   lazy val apacheCommonsClasspath: String =
     pathOf("apache.commons.jar.location")
 
+  lazy val fixtureBaseClasspath: String =
+    pathOf("fixture.base.jar.location")
+
+  lazy val fixtureDerivedClasspath: String =
+    pathOf("fixture.derived.jar.location")
+
+  lazy val fixtureMacrosClasspath: String =
+    pathOf("fixture.macros.jar.location")
+
   private def pathOf(jvmFlag: String) = {
     val jar = System.getProperty(jvmFlag)
     val libPath = Paths.get(baseDir, jar).toAbsolutePath
@@ -0,0 +1,3 @@
+package third_party.utils.src.test.io.bazel.rulesscala.utils.fixtures
+
+abstract class Base
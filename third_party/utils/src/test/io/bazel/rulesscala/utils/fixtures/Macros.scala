@@ -0,0 +1,14 @@
+package third_party.utils.src.test.io.bazel.rulesscala.utils.fixtures
+
+import scala.language.experimental.macros
+import scala.reflect.macros.blackbox
+
+object Macros {
+  // Expands to a literal, so only the call itself refers to this jar
+  def answer: Int = macro answerImpl
+
+  def answerImpl(c: blackbox.Context): c.Expr[Int] = {
+    import c.universe._
+    c.Expr[Int](Literal(Constant(42)))
+  }
+}